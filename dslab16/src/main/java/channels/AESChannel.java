@@ -2,43 +2,95 @@ package channels;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.crypto.Cipher;
 
-import org.bouncycastle.util.encoders.Base64;
-
 import crypto.Cryptography;
 
+/**
+ * Encrypts the session with AES/CTR. Each direction keeps its cipher for the
+ * lifetime of the channel and continues the counter from message to message:
+ * client to server starts at the IV, server to client at the IV with its top
+ * bit flipped, so the two directions never share key stream.
+ * <p/>
+ * Messages must be received in the order they were sent; sending is
+ * serialised so that encryption order and wire order match. Messages are
+ * encrypted and decrypted in place.
+ */
 public class AESChannel extends Base64Channel {
 
-	private byte[] ivParameter;
-	private byte[] secretKeyInBytes;
+	private Cipher encryptCipher;
+	private Cipher decryptCipher;
+	private Lock sendLock;
+	private GroupKeys groupKeys;
 
-	public AESChannel(Channel decoratedChannel, byte[] ivParameter, byte[] secretKeyInBytes) {
+	/**
+	 * @param decoratedChannel
+	 *            the transport channel
+	 * @param ivParameter
+	 *            the IV agreed on during the handshake
+	 * @param secretKeyInBytes
+	 *            the session key agreed on during the handshake
+	 * @param client
+	 *            whether this is the client's end of the session
+	 */
+	public AESChannel(Channel decoratedChannel, byte[] ivParameter, byte[] secretKeyInBytes,
+			boolean client) {
 		super(decoratedChannel);
-		this.ivParameter = ivParameter;
-		this.secretKeyInBytes = secretKeyInBytes;
-	}
-
-	@Override
-	public void send(String msg) {
-		byte[] encrypted = Cryptography.cryptoAES(Cipher.ENCRYPT_MODE, ivParameter,
-				secretKeyInBytes, msg.getBytes());
-		decoratedChannel.send(new String(Base64.encode(encrypted)));
+		byte[] upstream = ivParameter;
+		byte[] downstream = ivParameter.clone();
+		downstream[0] ^= (byte) 0x80;
+		this.encryptCipher = Cryptography.initAESStream(Cipher.ENCRYPT_MODE,
+				client ? upstream : downstream, secretKeyInBytes);
+		this.decryptCipher = Cryptography.initAESStream(Cipher.DECRYPT_MODE,
+				client ? downstream : upstream, secretKeyInBytes);
+		this.sendLock = new ReentrantLock();
+		// only the chatserver hands out group keys, it never accepts them
+		this.groupKeys = client ? new GroupKeys() : null;
 	}
 
 	@Override
-	public byte[] recvByte() throws SocketException, IOException {
-		//System.out.println("aes recv");
-		byte[] decoded = Base64.decode(decoratedChannel.recvByte());
-		byte[] decrypted = Cryptography.cryptoAES(Cipher.DECRYPT_MODE, ivParameter,
-				secretKeyInBytes, decoded);
-		return decrypted;
+	public void write(ByteBuffer message) {
+		sendLock.lock();
+		try {
+			Cryptography.update(encryptCipher, message);
+			decoratedChannel.sendFrame(new Frame(Frame.DATA, message));
+		} finally {
+			sendLock.unlock();
+		}
 	}
 
+	/**
+	 * Returns the next message of the session. On the client's end group key
+	 * announcements are consumed here and group encrypted public messages are
+	 * decrypted with the announced key, so callers only ever see plain
+	 * messages. The server's end accepts session messages only.
+	 */
 	@Override
-	public String recvString() throws SocketException {
-		return null;
+	public ByteBuffer read() throws SocketException, IOException {
+		while (true) {
+			Frame frame = decoratedChannel.recvFrame();
+			if (frame.getOpcode() == Frame.GROUP && groupKeys != null) {
+				ByteBuffer message = groupKeys.decrypt(frame.getPayload());
+				if (message != null) {
+					return message;
+				}
+				System.err.println(
+						"Dropped malformed public message or one with an unknown group key.");
+				continue;
+			}
+			if (frame.getOpcode() != Frame.DATA) {
+				throw new IOException("Unexpected frame " + frame.getOpcode() + ".");
+			}
+			ByteBuffer message = frame.getPayload();
+			Cryptography.update(decryptCipher, message);
+			if (groupKeys == null || !groupKeys.install(message)) {
+				return message;
+			}
+		}
 	}
 
 }
@@ -0,0 +1,44 @@
+package channels;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implements the String based methods of {@link Channel} on top of
+ * {@link #write(ByteBuffer)} and {@link #read()}, so existing callers keep
+ * working while the channels only deal with buffers.
+ */
+public abstract class AbstractChannel implements Channel {
+
+	@Override
+	public void send(String msg) {
+		write(ByteBuffer.wrap(msg.getBytes()));
+	}
+
+	@Override
+	public byte[] recvByte() throws SocketException, IOException {
+		ByteBuffer message = read();
+		return message == null ? null : toArray(message);
+	}
+
+	@Override
+	public String recvString() throws SocketException, IOException {
+		byte[] message = recvByte();
+		return message == null ? null : new String(message);
+	}
+
+	/**
+	 * @return the remaining bytes of the buffer, without copying if they make
+	 *         up its whole backing array
+	 */
+	public static byte[] toArray(ByteBuffer buffer) {
+		if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+				&& buffer.remaining() == buffer.array().length) {
+			return buffer.array();
+		}
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+}
@@ -3,11 +3,15 @@ package channels;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.security.Key;
 
-import org.bouncycastle.util.encoders.Base64;
-
-public abstract class Base64Channel implements Channel {
+/**
+ * Base of the encrypting decorators. Binary payloads are handed to the
+ * transport as {@link Frame#DATA} frames, which encodes them in Base64 only if
+ * it is line based.
+ */
+public abstract class Base64Channel extends AbstractChannel {
 
 	protected Channel decoratedChannel;
 
@@ -26,13 +30,34 @@ public abstract class Base64Channel implements Channel {
 	}
 
 	@Override
-	public void send(String msg) {
-		decoratedChannel.send(new String(Base64.encode(msg.getBytes())));
+	public void write(ByteBuffer message) {
+		decoratedChannel.sendFrame(new Frame(Frame.DATA, message));
 	}
 
 	@Override
-	public byte[] recvByte() throws SocketException, IOException {
-		return Base64.decode(decoratedChannel.recvByte());
+	public ByteBuffer read() throws SocketException, IOException {
+		return recvData();
+	}
+
+	@Override
+	public void sendFrame(Frame frame) {
+		decoratedChannel.sendFrame(frame);
+	}
+
+	@Override
+	public Frame recvFrame() throws SocketException, IOException {
+		return decoratedChannel.recvFrame();
+	}
+
+	/**
+	 * @return the payload of the next frame, which must be a data frame
+	 */
+	protected ByteBuffer recvData() throws SocketException, IOException {
+		Frame frame = decoratedChannel.recvFrame();
+		if (frame.getOpcode() != Frame.DATA) {
+			throw new IOException("Unexpected frame " + frame.getOpcode() + ".");
+		}
+		return frame.getPayload();
 	}
 
 	@Override
@@ -3,8 +3,15 @@ package channels;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.security.Key;
 
+/**
+ * A message channel. Messages are exchanged as buffers: {@link #write}
+ * passes ownership of the buffer to the channel, which may transform it in
+ * place, and the buffer returned by {@link #read} belongs to the caller. The
+ * String based methods are adapters on top, see {@link AbstractChannel}.
+ */
 public interface Channel {
 
 	public Socket getSocket();
@@ -13,10 +20,33 @@ public interface Channel {
 
 	public void send(String msg);
 
+	/**
+	 * Sends the remaining bytes of the buffer as one message. The channel
+	 * takes ownership of the buffer.
+	 */
+	public void write(ByteBuffer message);
+
+	/**
+	 * Receives the next message, or null at end of stream. The caller takes
+	 * ownership of the buffer.
+	 */
+	public ByteBuffer read() throws SocketException, IOException;
+
 	public byte[] recvByte() throws SocketException, IOException;
 	
 	public String recvString() throws SocketException, IOException;
 
+	/**
+	 * Sends a frame. Transports encode it according to their framing,
+	 * decorators pass it on to the transport.
+	 */
+	public void sendFrame(Frame frame);
+
+	/**
+	 * Receives the next frame from the transport.
+	 */
+	public Frame recvFrame() throws SocketException, IOException;
+
 	public void close() throws SocketException;
 	
 	public void setOwnKey(Key ownKey);
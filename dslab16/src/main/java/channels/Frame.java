@@ -0,0 +1,135 @@
+package channels;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Unit of transport between client and chatserver. A frame has an opcode
+ * telling how its payload is to be interpreted:
+ * <ul>
+ * <li>{@link #TEXT}: a plain text line, always starting with '!'</li>
+ * <li>{@link #DATA}: an encrypted session message</li>
+ * <li>{@link #GROUP}: a public message encrypted with a group key</li>
+ * </ul>
+ * On a line based transport frames are written as text lines, binary payloads
+ * in Base64 and group frames with a {@code !group } prefix. On a binary transport
+ * a frame is a four byte payload length, the opcode and the raw payload.
+ * <p/>
+ * The payload is the remaining content of a buffer. Whoever holds the frame
+ * owns the buffer.
+ */
+public class Frame {
+
+	public static final byte TEXT = 0;
+	public static final byte DATA = 1;
+	public static final byte GROUP = 2;
+
+	/**
+	 * First byte a client writes to ask for binary framing. The server echoes
+	 * it to confirm. It can never start a line of the text protocol.
+	 */
+	public static final byte BINARY_MAGIC = (byte) 0xB1;
+
+	/**
+	 * Bytes in front of the payload of a binary frame.
+	 */
+	public static final int HEADER_LENGTH = 5;
+
+	/**
+	 * Upper bound for the payload of a binary frame, so a corrupt length
+	 * cannot make the receiver allocate arbitrary amounts of memory.
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+
+	private static final byte[] GROUP_PREFIX = { '!', 'g', 'r', 'o', 'u', 'p', ' ' };
+	private static final byte[] LINE_END = { '\n' };
+
+	private byte opcode;
+	private ByteBuffer payload;
+
+	public Frame(byte opcode, ByteBuffer payload) {
+		this.opcode = opcode;
+		this.payload = payload;
+	}
+
+	public Frame(byte opcode, byte[] payload) {
+		this(opcode, ByteBuffer.wrap(payload));
+	}
+
+	public byte getOpcode() {
+		return opcode;
+	}
+
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return the frame as a line of the text protocol, terminator included,
+	 *         in buffers to be written in order
+	 */
+	public ByteBuffer[] toLine() {
+		ByteBuffer lineEnd = ByteBuffer.wrap(LINE_END);
+		switch (opcode) {
+		case DATA:
+			return new ByteBuffer[] { Base64.getEncoder().encode(payload.duplicate()), lineEnd };
+		case GROUP:
+			return new ByteBuffer[] { ByteBuffer.wrap(GROUP_PREFIX),
+					Base64.getEncoder().encode(payload.duplicate()), lineEnd };
+		default:
+			return new ByteBuffer[] { payload.duplicate(), lineEnd };
+		}
+	}
+
+	/**
+	 * Parses a line of the text protocol. Lines starting with '!' are text
+	 * frames unless they start with the whole group prefix; everything else is
+	 * Base64. The line is not retained unless it becomes the payload of a text
+	 * frame.
+	 */
+	public static Frame fromLine(ByteBuffer line) {
+		int start = line.position();
+		if (line.remaining() > 0 && line.get(start) == '!') {
+			if (hasGroupPrefix(line)) {
+				ByteBuffer encoded = line.duplicate();
+				encoded.position(start + GROUP_PREFIX.length);
+				return new Frame(GROUP, Base64.getDecoder().decode(encoded));
+			}
+			return new Frame(TEXT, line);
+		}
+		return new Frame(DATA, Base64.getDecoder().decode(line));
+	}
+
+	private static boolean hasGroupPrefix(ByteBuffer line) {
+		if (line.remaining() < GROUP_PREFIX.length) {
+			return false;
+		}
+		for (int i = 0; i < GROUP_PREFIX.length; i++) {
+			if (line.get(line.position() + i) != GROUP_PREFIX[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the frame in binary framing, header and payload, to be written
+	 *         in order
+	 */
+	public ByteBuffer[] toBinary() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(payload.remaining()).put(opcode).flip();
+		return new ByteBuffer[] { header, payload.duplicate() };
+	}
+
+	/**
+	 * Checks a payload length read from a binary frame header.
+	 */
+	public static int checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+			throw new IOException("Invalid frame length " + length + ".");
+		}
+		return length;
+	}
+}
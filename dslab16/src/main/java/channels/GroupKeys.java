@@ -0,0 +1,104 @@
+package channels;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import crypto.Cryptography;
+
+/**
+ * Keys for public messages the chatserver encrypts once for all recipients
+ * instead of once per session. Such messages travel as {@link Frame#GROUP}
+ * frames carrying epoch, IV and ciphertext next to the per-session AES
+ * traffic. Keys are announced inside the session as
+ * {@code !groupkey <epoch> <base64 key>}.
+ */
+public class GroupKeys {
+
+	private static final String ANNOUNCEMENT_PREFIX = "!groupkey ";
+	private static final byte[] ANNOUNCEMENT_BYTES = ANNOUNCEMENT_PREFIX.getBytes();
+	private static final int IV_LENGTH = 16;
+	private static final int RETAINED_EPOCHS = 2;
+
+	private Map<Long, byte[]> keys = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the session message announcing the key of the given epoch
+	 */
+	public static String announcement(long epoch, byte[] key) {
+		return ANNOUNCEMENT_PREFIX + epoch + " " + new String(Base64.encode(key));
+	}
+
+	/**
+	 * Encrypts a message with a group key, using a fresh random IV.
+	 *
+	 * @return the frame to write to every recipient
+	 */
+	public static Frame frame(long epoch, byte[] key, byte[] message) {
+		byte[] iv = Cryptography.genSecureRandomNumber(IV_LENGTH);
+		byte[] encrypted = Cryptography.cryptoAES(Cipher.ENCRYPT_MODE, iv, key, message);
+		ByteBuffer payload = ByteBuffer.allocate(Long.BYTES + IV_LENGTH + encrypted.length);
+		payload.putLong(epoch).put(iv).put(encrypted);
+		return new Frame(Frame.GROUP, payload.array());
+	}
+
+	/**
+	 * Remembers the key if the decrypted session message is an announcement.
+	 * Only the most recent epochs are retained; malformed announcements are
+	 * dropped.
+	 *
+	 * @return whether the message was an announcement
+	 */
+	public boolean install(ByteBuffer message) {
+		if (message.remaining() < ANNOUNCEMENT_BYTES.length) {
+			return false;
+		}
+		for (int i = 0; i < ANNOUNCEMENT_BYTES.length; i++) {
+			if (message.get(message.position() + i) != ANNOUNCEMENT_BYTES[i]) {
+				return false;
+			}
+		}
+		String msg = new String(AbstractChannel.toArray(message));
+		String[] parts = msg.split("\\s");
+		long epoch;
+		byte[] key;
+		try {
+			epoch = Long.parseLong(parts[1]);
+			key = Base64.decode(parts[2]);
+		} catch (RuntimeException e) {
+			System.err.println("Dropped malformed group key announcement.");
+			return true;
+		}
+		if (key.length != 16 && key.length != 24 && key.length != 32) {
+			System.err.println("Dropped group key of invalid length " + key.length + ".");
+			return true;
+		}
+		keys.put(epoch, key);
+		keys.keySet().removeIf(e -> e <= epoch - RETAINED_EPOCHS);
+		return true;
+	}
+
+	/**
+	 * Decrypts the payload of a group frame.
+	 *
+	 * @return the message, or null if the payload is too short or the key of
+	 *         its epoch is unknown
+	 */
+	public ByteBuffer decrypt(ByteBuffer payload) {
+		if (payload.remaining() < Long.BYTES + IV_LENGTH) {
+			return null;
+		}
+		byte[] key = keys.get(payload.getLong());
+		if (key == null) {
+			return null;
+		}
+		byte[] iv = new byte[IV_LENGTH];
+		byte[] encrypted = new byte[payload.get(iv).remaining()];
+		payload.get(encrypted);
+		return ByteBuffer.wrap(Cryptography.cryptoAES(Cipher.DECRYPT_MODE, iv, key, encrypted));
+	}
+}
@@ -0,0 +1,298 @@
+package channels;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import util.BufferPool;
+
+/**
+ * Non-blocking counterpart of {@link TCPChannel}. The owning reactor thread
+ * reads from the socket and splits the input into lines or, once the client
+ * asked for binary framing with its first byte, into frames;
+ * {@link #recvByte()} hands out one buffered line or frame per call. Outgoing
+ * data is queued and written whenever the socket accepts it, so
+ * {@link #send(String)} never blocks and may be called from any thread.
+ */
+public class NioTCPChannel extends AbstractChannel {
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	// room for the largest frame, also when it is Base64 encoded on a line
+	private static final int MAX_BUFFER_SIZE = 2 * Frame.MAX_PAYLOAD_LENGTH;
+
+	private SocketChannel socketChannel;
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	private Queue<ByteBuffer> lines;
+	private Queue<Frame> frames;
+	private boolean binary;
+	private boolean negotiate;
+	private boolean acknowledge;
+	private Queue<ByteBuffer> writeQueue;
+	private Lock writeLock;
+
+	public NioTCPChannel(SocketChannel socketChannel) throws IOException {
+		this.socketChannel = socketChannel;
+		this.socketChannel.configureBlocking(false);
+		this.readBuffer = BufferPool.DIRECT.acquire(INITIAL_BUFFER_SIZE);
+		this.lines = new ArrayDeque<>();
+		this.frames = new ArrayDeque<>();
+		this.negotiate = true;
+		this.writeQueue = new ArrayDeque<>();
+		this.writeLock = new ReentrantLock();
+	}
+
+	/**
+	 * Registers the socket for reads with the given selector. Must be called on
+	 * the thread running the selector.
+	 */
+	public SelectionKey register(Selector selector, Object attachment)
+			throws ClosedChannelException {
+		writeLock.lock();
+		try {
+			key = socketChannel.register(selector, SelectionKey.OP_READ, attachment);
+			updateInterest();
+			return key;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads whatever is available on the socket and splits it into lines or
+	 * frames.
+	 *
+	 * @return false if the peer or this server closed the connection
+	 * @throws IOException
+	 *             also if a line or frame does not fit into the largest read
+	 *             buffer
+	 */
+	public boolean fill() throws IOException {
+		boolean open = readAvailable();
+		if (acknowledge) {
+			acknowledge = false;
+			// not while holding the read buffer, closing on a failed write needs it
+			enqueue(ByteBuffer.wrap(new byte[] { Frame.BINARY_MAGIC }));
+		}
+		return open;
+	}
+
+	private synchronized boolean readAvailable() throws IOException {
+		if (readBuffer == null) {
+			return false;
+		}
+		int read;
+		while ((read = socketChannel.read(readBuffer)) > 0) {
+			frame();
+			if (!readBuffer.hasRemaining()) {
+				if (readBuffer.capacity() >= MAX_BUFFER_SIZE) {
+					throw new IOException("Request exceeds " + MAX_BUFFER_SIZE + " bytes.");
+				}
+				ByteBuffer larger = BufferPool.DIRECT.acquire(readBuffer.capacity() * 2);
+				larger.clear();
+				larger.put(readBuffer.flip());
+				BufferPool.DIRECT.release(readBuffer);
+				readBuffer = larger;
+			}
+		}
+		return read != -1;
+	}
+
+	private void frame() throws IOException {
+		readBuffer.flip();
+		if (negotiate && readBuffer.hasRemaining()) {
+			negotiate = false;
+			if (readBuffer.get(0) == Frame.BINARY_MAGIC) {
+				readBuffer.get();
+				binary = true;
+				acknowledge = true;
+			}
+		}
+		if (binary) {
+			splitFrames();
+		} else {
+			splitLines();
+		}
+		readBuffer.compact();
+	}
+
+	private void splitFrames() throws IOException {
+		while (readBuffer.remaining() >= Frame.HEADER_LENGTH) {
+			int length = Frame.checkLength(readBuffer.getInt(readBuffer.position()));
+			if (readBuffer.remaining() < Frame.HEADER_LENGTH + length) {
+				return;
+			}
+			readBuffer.getInt();
+			byte opcode = readBuffer.get();
+			byte[] payload = new byte[length];
+			readBuffer.get(payload);
+			frames.add(new Frame(opcode, payload));
+		}
+	}
+
+	private void splitLines() {
+		int start = readBuffer.position();
+		for (int i = start; i < readBuffer.limit(); i++) {
+			if (readBuffer.get(i) == '\n') {
+				int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+				byte[] line = new byte[end - start];
+				readBuffer.position(start);
+				readBuffer.get(line);
+				lines.add(ByteBuffer.wrap(line));
+				start = i + 1;
+			}
+		}
+		readBuffer.position(start);
+	}
+
+	/**
+	 * Returns the read buffer to the pool once the channel will not be read
+	 * any more. Called by {@link #close()}, so it may run on any thread.
+	 */
+	public synchronized void releaseBuffers() {
+		if (readBuffer != null) {
+			BufferPool.DIRECT.release(readBuffer);
+			readBuffer = null;
+		}
+	}
+
+	/**
+	 * @return whether a complete line or frame is waiting to be consumed
+	 */
+	public boolean hasFrame() {
+		return binary ? !frames.isEmpty() : !lines.isEmpty();
+	}
+
+	/**
+	 * Writes as much queued output as the socket accepts without blocking and
+	 * asks the selector for a writable event if anything is left over.
+	 */
+	public void flush() {
+		writeLock.lock();
+		try {
+			while (!writeQueue.isEmpty()) {
+				ByteBuffer head = writeQueue.peek();
+				socketChannel.write(head);
+				if (head.hasRemaining()) {
+					break;
+				}
+				writeQueue.poll();
+			}
+			updateInterest();
+		} catch (IOException e) {
+			writeQueue.clear();
+			try {
+				close();
+			} catch (SocketException e1) {
+				System.err.println(e1.getMessage());
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void updateInterest() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		int ops = writeQueue.isEmpty() ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		try {
+			if (key.interestOps() != ops) {
+				key.interestOps(ops);
+				key.selector().wakeup();
+			}
+		} catch (CancelledKeyException e) {
+		}
+	}
+
+	@Override
+	public Socket getSocket() {
+		return socketChannel.socket();
+	}
+
+	@Override
+	public Channel getDecoratedChannel() {
+		return null;
+	}
+
+	@Override
+	public void write(ByteBuffer message) {
+		sendFrame(new Frame(Frame.TEXT, message));
+	}
+
+	@Override
+	public void sendFrame(Frame frame) {
+		enqueue(binary ? frame.toBinary() : frame.toLine());
+	}
+
+	private void enqueue(ByteBuffer... buffers) {
+		writeLock.lock();
+		try {
+			for (ByteBuffer buffer : buffers) {
+				writeQueue.add(buffer);
+			}
+			flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public ByteBuffer read() throws SocketException, IOException {
+		if (binary) {
+			return recvFrame().getPayload();
+		}
+		ByteBuffer line = lines.poll();
+		if (line == null) {
+			throw new IOException("No complete request available.");
+		}
+		return line;
+	}
+
+	@Override
+	public Frame recvFrame() throws SocketException, IOException {
+		if (!binary) {
+			return Frame.fromLine(read());
+		}
+		Frame frame = frames.poll();
+		if (frame == null) {
+			throw new IOException("No complete request available.");
+		}
+		return frame;
+	}
+
+	@Override
+	public String recvString() throws SocketException, IOException {
+		return new String(recvByte());
+	}
+
+	@Override
+	public void close() throws SocketException {
+		try {
+			socketChannel.close();
+		} catch (IOException e) {
+			throw new SocketException(e.getMessage());
+		} finally {
+			releaseBuffers();
+		}
+	}
+
+	@Override
+	public void setOwnKey(Key ownKey) {}
+
+	@Override
+	public void setOppositeKey(Key oppositeKey) {}
+
+}
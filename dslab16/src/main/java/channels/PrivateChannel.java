@@ -3,12 +3,14 @@ package channels;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.security.Key;
 
 import crypto.Cryptography;
 import crypto.Cryptography.HMAC_ALGORITHM;
+import util.BufferPool;
 
-public class PrivateChannel implements Channel{
+public class PrivateChannel extends AbstractChannel{
 
 	private TCPChannel decoratedChannel;
 	private Key ownKey;
@@ -29,18 +31,28 @@ public class PrivateChannel implements Channel{
 	}
 
 	@Override
-	public void send(String msg) {
-		msg = Cryptography.genMessageWithHMac(ownKey, HMAC_ALGORITHM.HmacSHA256, msg);
-		decoratedChannel.send(msg);
+	public void write(ByteBuffer message) {
+		byte[] hmac = Cryptography.genHMacToken(ownKey, HMAC_ALGORITHM.HmacSHA256, message);
+		ByteBuffer withHMac = BufferPool.HEAP.acquire(hmac.length + 1 + message.remaining());
+		withHMac.put(hmac).put((byte) ' ').put(message).flip();
+		// TCPChannel has written the message once write returns
+		decoratedChannel.write(withHMac);
+		BufferPool.HEAP.release(withHMac);
 	}
 
 	@Override
-	public byte[] recvByte() throws SocketException, IOException {
-		return decoratedChannel.recvByte();
+	public ByteBuffer read() throws SocketException, IOException {
+		return decoratedChannel.read();
 	}
-	
-	public String recvString() throws SocketException, IOException {
-		return decoratedChannel.recvString();
+
+	@Override
+	public void sendFrame(Frame frame) {
+		decoratedChannel.sendFrame(frame);
+	}
+
+	@Override
+	public Frame recvFrame() throws SocketException, IOException {
+		return decoratedChannel.recvFrame();
 	}
 
 	@Override
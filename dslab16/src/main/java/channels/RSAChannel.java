@@ -2,52 +2,67 @@ package channels;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.security.Key;
 
 import javax.crypto.Cipher;
 
-import org.bouncycastle.util.encoders.Base64;
-
 import crypto.Cryptography;
 
+/**
+ * Encrypts messages with RSA/OAEP. The ciphers are created once per key and
+ * reused for every message instead of being looked up on each call.
+ * <p/>
+ * Plain text frames are passed through as they are; session resumption is
+ * exchanged in the clear, its secrets never leave the ticket.
+ */
 public class RSAChannel extends Base64Channel {
 
-	private Key ownKey;
-	private Key oppositeKey;
+	private Cipher encryptCipher;
+	private Cipher decryptCipher;
 
 	public RSAChannel(Channel decoratedChannel, Key ownKey) {
 		super(decoratedChannel);
-		this.ownKey = ownKey;
+		setOwnKey(ownKey);
 	}
 
 	@Override
 	public void setOwnKey(Key ownKey) {
-		this.ownKey = ownKey;
+		this.decryptCipher = ownKey == null ? null
+				: Cryptography.initRSA(Cipher.DECRYPT_MODE, ownKey);
 	}
 	
 	@Override
 	public void setOppositeKey(Key oppositeKey) {
-		this.oppositeKey = oppositeKey;
+		this.encryptCipher = oppositeKey == null ? null
+				: Cryptography.initRSA(Cipher.ENCRYPT_MODE, oppositeKey);
 	}
 
 	@Override
-	public void send(String msg) {
-		if (oppositeKey == null)
+	public void write(ByteBuffer message) {
+		if (encryptCipher == null)
 			return;
-		byte[] encrypted = Cryptography.cryptoRSA(Cipher.ENCRYPT_MODE, oppositeKey, msg.getBytes());
-		decoratedChannel.send(new String(Base64.encode(encrypted)));
+		byte[] encrypted = Cryptography.cryptoRSA(encryptCipher, toArray(message));
+		decoratedChannel.sendFrame(new Frame(Frame.DATA, encrypted));
 	}
 
 	@Override
-	public byte[] recvByte() throws SocketException, IOException {
-		//System.out.println("rsa recv");
-		byte[] decoded = Base64.decode(decoratedChannel.recvByte());
-		byte[] decrypted = Cryptography.cryptoRSA(Cipher.DECRYPT_MODE, ownKey, decoded);
-		return decrypted;
+	public ByteBuffer read() throws SocketException, IOException {
+		Frame frame = decoratedChannel.recvFrame();
+		if (frame.getOpcode() == Frame.TEXT) {
+			return frame.getPayload();
+		}
+		if (frame.getOpcode() != Frame.DATA) {
+			throw new IOException("Unexpected frame " + frame.getOpcode() + ".");
+		}
+		return decrypt(frame.getPayload());
 	}
 
-	@Override
-	public String recvString() throws SocketException {
-		return null;
+	/**
+	 * Decrypts the payload of a data frame that was received by other means
+	 * than {@link #read()}, e.g. to do so on another thread.
+	 */
+	public ByteBuffer decrypt(ByteBuffer payload) {
+		return ByteBuffer.wrap(Cryptography.cryptoRSA(decryptCipher, toArray(payload)));
 	}
 }
@@ -1,30 +1,84 @@
 package channels;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.security.Key;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class TCPChannel implements Channel {
+import util.BufferPool;
+
+/**
+ * Blocking transport over a socket. It starts out line based; a client may
+ * switch the connection to binary framing with {@link #requestBinary()},
+ * which a channel created with {@code negotiate} set detects on its first
+ * read and confirms. See {@link Frame} for both encodings.
+ */
+public class TCPChannel extends AbstractChannel {
+
+	private static final int INITIAL_LINE_LENGTH = 256;
 
 	private Socket socket;
-	private BufferedReader reader;
-	private PrintWriter writer;
+	private DataInputStream reader;
+	private OutputStream writer;
+	private Lock writeLock;
+	private boolean binary;
+	private boolean negotiate;
+	private byte[] line;
 
 	public TCPChannel(Socket socket) {
+		this(socket, false);
+	}
+
+	/**
+	 * @param negotiate
+	 *            whether the peer may ask for binary framing with its first
+	 *            byte
+	 */
+	public TCPChannel(Socket socket, boolean negotiate) {
 		this.socket = socket;
+		this.negotiate = negotiate;
+		this.writeLock = new ReentrantLock();
+		this.line = new byte[INITIAL_LINE_LENGTH];
 		try {
-			reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			writer = new PrintWriter(socket.getOutputStream(), true);
+			reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			writer = new BufferedOutputStream(socket.getOutputStream());
 		} catch (IOException e) {
 			System.err.println(
 					"Error occurred while setting up reader and writer: " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Asks the server to switch this connection to binary framing. Must be
+	 * called before anything else is sent.
+	 *
+	 * @throws IOException
+	 *             if the server does not confirm
+	 */
+	public void requestBinary() throws IOException {
+		writeAll(ByteBuffer.wrap(new byte[] { Frame.BINARY_MAGIC }));
+		if (reader.read() != (Frame.BINARY_MAGIC & 0xFF)) {
+			throw new IOException("Server does not support binary framing.");
+		}
+		binary = true;
+	}
+
+	/**
+	 * @return whether the connection uses binary framing
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
 	@Override
 	public Socket getSocket() {
 		return socket;
@@ -48,18 +102,117 @@ public class TCPChannel implements Channel {
 	}
 
 	@Override
-	public void send(String msg) {
-		writer.println(msg);
+	public void write(ByteBuffer message) {
+		sendFrame(new Frame(Frame.TEXT, message));
 	}
 
 	@Override
-	public byte[] recvByte() throws SocketException, IOException {
-		return reader.readLine().getBytes();
+	public void sendFrame(Frame frame) {
+		writeAll(binary ? frame.toBinary() : frame.toLine());
+	}
+
+	private void writeAll(ByteBuffer... buffers) {
+		writeLock.lock();
+		try {
+			for (ByteBuffer buffer : buffers) {
+				if (buffer.hasArray()) {
+					writer.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+							buffer.remaining());
+				} else {
+					ByteBuffer copy = BufferPool.HEAP.acquire(buffer.remaining());
+					copy.put(buffer.duplicate());
+					writer.write(copy.array(), copy.arrayOffset(), copy.position());
+					BufferPool.HEAP.release(copy);
+				}
+			}
+			writer.flush();
+		} catch (IOException e) {
+			// like PrintWriter, errors surface on the next read
+		} finally {
+			writeLock.unlock();
+		}
 	}
-	
+
+	/**
+	 * Returns the payload of the next frame or, with line framing, the next
+	 * raw line.
+	 */
 	@Override
-	public String recvString() throws SocketException, IOException {
-		return reader.readLine();
+	public ByteBuffer read() throws SocketException, IOException {
+		if (binary || negotiate()) {
+			Frame frame = recvFrame();
+			return frame == null ? null : frame.getPayload();
+		}
+		int length = readLine();
+		return length < 0 ? null : ByteBuffer.wrap(Arrays.copyOf(line, length));
+	}
+
+	@Override
+	public Frame recvFrame() throws SocketException, IOException {
+		if (binary || negotiate()) {
+			int length;
+			try {
+				length = Frame.checkLength(reader.readInt());
+			} catch (EOFException e) {
+				return null;
+			}
+			byte opcode = reader.readByte();
+			byte[] payload = new byte[length];
+			reader.readFully(payload);
+			return new Frame(opcode, payload);
+		}
+		int length = readLine();
+		if (length < 0) {
+			return null;
+		}
+		Frame frame = Frame.fromLine(ByteBuffer.wrap(line, 0, length));
+		if (frame.getOpcode() == Frame.TEXT) {
+			// the line buffer is reused, hand out a copy
+			return new Frame(Frame.TEXT, Arrays.copyOf(line, length));
+		}
+		return frame;
+	}
+
+	/**
+	 * Checks the first byte of the connection for a binary framing request
+	 * and confirms it.
+	 *
+	 * @return whether the connection switched to binary framing
+	 */
+	private boolean negotiate() throws IOException {
+		if (!negotiate) {
+			return false;
+		}
+		negotiate = false;
+		reader.mark(1);
+		if (reader.read() == (Frame.BINARY_MAGIC & 0xFF)) {
+			binary = true;
+			writeAll(ByteBuffer.wrap(new byte[] { Frame.BINARY_MAGIC }));
+		} else {
+			reader.reset();
+		}
+		return binary;
+	}
+
+	/**
+	 * Reads the next line into the reusable line buffer.
+	 *
+	 * @return the length of the line without its terminator, or -1 at end of
+	 *         stream
+	 */
+	private int readLine() throws IOException {
+		int length = 0;
+		int b;
+		while ((b = reader.read()) != '\n') {
+			if (b == -1) {
+				return length == 0 ? -1 : length;
+			}
+			if (length == line.length) {
+				line = Arrays.copyOf(line, length * 2);
+			}
+			line[length++] = (byte) b;
+		}
+		return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
 	}
 
 	@Override
@@ -79,10 +232,13 @@ public class TCPChannel implements Channel {
 			}
 		}
 		if (writer != null) {
-			writer.close();
+			try {
+				writer.close();
+			} catch (IOException e) {
+			}
 		}
 	}
-	
+
 	@Override
 	public void setOwnKey(Key ownKey) {}
 
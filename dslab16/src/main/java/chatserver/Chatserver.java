@@ -1,24 +1,36 @@
 package chatserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.util.Collections;
-import java.util.Map;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import chatserver.broadcast.Broadcaster;
+import chatserver.broadcast.PresenceFeed;
+import chatserver.naming.NameserverClient;
+import chatserver.naming.ResolutionCache;
+import chatserver.tcp.HandshakePool;
+import chatserver.tcp.NioTCPListener;
+import chatserver.tcp.SessionDirectory;
+import chatserver.tcp.SessionTickets;
+import chatserver.tcp.TCPConnection;
 import chatserver.tcp.TCPListener;
+import chatserver.udp.ListCache;
 import chatserver.udp.UDPListener;
 import cli.Command;
 import cli.Shell;
 import crypto.Cryptography;
 import model.User;
+import model.UserRegistry;
+import util.BufferPool;
 import util.Config;
+import util.ExecutionMode;
+import util.PublicKeyStore;
 
 public class Chatserver implements IChatserverCli, Runnable {
 
@@ -28,10 +40,19 @@ public class Chatserver implements IChatserverCli, Runnable {
 	private PrintStream userResponseStream;
 
 	private ServerSocket serverSocket;
-	private DatagramSocket datagramSocket;
+	private NioTCPListener nioListener;
+	private UDPListener udpListener;
 	private Shell shell;
 	private ExecutorService pool;
-	private Map<String, User> userMap;
+	private UserRegistry users;
+	private SessionDirectory sessions;
+	private ListCache listCache;
+	private Broadcaster broadcaster;
+	private PresenceFeed presence;
+	private PublicKeyStore publicKeys;
+	private HandshakePool handshakes;
+	private ResolutionCache resolutions;
+	private NameserverClient nameservers;
 
 	/**
 	 * @param componentName
@@ -53,36 +74,54 @@ public class Chatserver implements IChatserverCli, Runnable {
 		shell = new Shell(componentName, userRequestStream, userResponseStream);
 		shell.register(this);
 
-		pool = Executors.newCachedThreadPool();
+		pool = ExecutionMode.fromConfig(config).newExecutor();
 
-		userMap = Collections.synchronizedMap(new TreeMap<String, User>());
+		users = new UserRegistry();
+		sessions = new SessionDirectory(new SessionTickets(config));
 		Config userProperties = new Config("user");
 		Set<String> userKeys = userProperties.listKeys();
-		synchronized (userMap) {
-			for (String s : userKeys) {
-				User u = new User(s.substring(0, s.length() - 9), userProperties.getString(s));
-				if (!userMap.containsKey(u.getName())) {
-					userMap.put(u.getName(), u);
-				}
-			}
+		for (String s : userKeys) {
+			User u = new User(s.substring(0, s.length() - 9), userProperties.getString(s));
+			users.add(u);
 		}
+		listCache = new ListCache(users);
 		Cryptography.init();
+		broadcaster = new Broadcaster(config, pool);
+		presence = new PresenceFeed(config, users);
+		publicKeys = new PublicKeyStore(new File(config.getString("keys.dir")));
+		handshakes = new HandshakePool(config);
+		resolutions = new ResolutionCache(config);
+		nameservers = new NameserverClient(config, resolutions);
 	}
 
 	@Override
 	public void run() {
 		pool.execute(shell);
+		pool.execute(publicKeys);
 
 		try {
-			serverSocket = new ServerSocket(config.getInt("tcp.port"));
-			TCPListener tcpListener = new TCPListener(serverSocket, pool, userMap, userResponseStream);
-			pool.execute(tcpListener);
+			if (config.listKeys().contains("tcp.mode") && config.getString("tcp.mode").equals("nio")) {
+				ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+				serverSocketChannel.bind(new InetSocketAddress(config.getInt("tcp.port")));
+				serverSocket = serverSocketChannel.socket();
+				nioListener = new NioTCPListener(serverSocketChannel, config.getInt("tcp.reactors"),
+						pool, users, sessions, broadcaster, presence, publicKeys, handshakes,
+						nameservers, userResponseStream);
+				pool.execute(nioListener);
+			} else {
+				serverSocket = new ServerSocket(config.getInt("tcp.port"));
+				TCPListener tcpListener = new TCPListener(serverSocket, pool, users, sessions,
+						broadcaster, presence, publicKeys, handshakes, nameservers,
+						userResponseStream);
+				pool.execute(tcpListener);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException("Cannot listen on TCP port.", e);
 		}
 		try {
-			datagramSocket = new DatagramSocket(config.getInt("udp.port"));
-			UDPListener udpListener = new UDPListener(datagramSocket, pool, userMap);
+			int sockets = config.listKeys().contains("udp.sockets") ? config.getInt("udp.sockets")
+					: 1;
+			udpListener = new UDPListener(config.getInt("udp.port"), sockets, pool, listCache);
 			pool.execute(udpListener);
 		} catch (IOException e) {
 			throw new RuntimeException("Cannot listen on UDP port.", e);
@@ -95,13 +134,10 @@ public class Chatserver implements IChatserverCli, Runnable {
 	public String users() throws IOException {
 		String response = "";
 		int counter = 1;
-		synchronized (userMap) {
-			for (Map.Entry<String, User> entry : userMap.entrySet()) {
-				User user = (User) entry.getValue();
-				String status = user.isLoggedIn() ? "online" : "offline";
-				response += counter + ". " + user.getName() + " " + status + "\n";
-				++counter;
-			}
+		for (User user : users.all()) {
+			String status = user.isLoggedIn() ? "online" : "offline";
+			response += counter + ". " + user.getName() + " " + status + "\n";
+			++counter;
 		}
 
 		if (response.length() > 0) {
@@ -110,6 +146,19 @@ public class Chatserver implements IChatserverCli, Runnable {
 		return response;
 	}
 
+	@Override
+	@Command
+	public String stats() throws IOException {
+		return broadcaster.stats() + "\n" + presence.stats() + "\n"
+				+ sessions.tickets().stats() + "\n" + publicKeys.stats() + "\n"
+				+ handshakes.stats() + "\n" + resolutions.stats() + "\n"
+				+ nameservers.stats() + "\n"
+				+ BufferPool.HEAP.stats() + "\n"
+				+ BufferPool.DIRECT.stats() + "\n" + listCache.stats() + "\n"
+				+ (udpListener != null ? udpListener.stats() + "\n" : "")
+				+ TCPConnection.COMMANDS.stats();
+	}
+
 	@Override
 	@Command
 	public String exit() throws IOException {
@@ -126,11 +175,18 @@ public class Chatserver implements IChatserverCli, Runnable {
 			shell.close();
 		}
 
+		presence.close();
+		publicKeys.close();
+		handshakes.close();
+		nameservers.close();
+		if (nioListener != null) {
+			nioListener.close();
+		}
 		if (serverSocket != null && !serverSocket.isClosed()) {
 			serverSocket.close();
 		}
-		if (datagramSocket != null && !datagramSocket.isClosed()) {
-			datagramSocket.close();
+		if (udpListener != null) {
+			udpListener.close();
 		}
 
 		try {
@@ -15,6 +15,15 @@ public interface IChatserverCli {
 	 */
 	public String users() throws IOException;
 
+	/**
+	 * Prints out runtime statistics of the chatserver, such as public message
+	 * fan-out counters and delivery latencies.<br/>
+	 *
+	 * @return the statistics
+	 * @throws IOException
+	 */
+	public String stats() throws IOException;
+
 	/**
 	 * Performs a shutdown of the chatserver and releases all resources. <br/>
 	 * Shutting down an already terminated chatserver has no effect.
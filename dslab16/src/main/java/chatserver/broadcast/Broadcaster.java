@@ -0,0 +1,163 @@
+package chatserver.broadcast;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import channels.Frame;
+import chatserver.broadcast.OutboundQueue.Delivery;
+import chatserver.tcp.TCPConnection;
+import util.Config;
+import util.LatencyRecorder;
+
+/**
+ * Fans public messages out to all logged in connections. Each message is
+ * built once and put on every recipient's {@link OutboundQueue}; the actual
+ * socket writes happen on writer tasks, so the sender never waits for slow
+ * recipients (unless the {@link SlowConsumerPolicy#BLOCK} policy is chosen).
+ * <p/>
+ * With {@code broadcast.groupkey} enabled, the message is also encrypted once
+ * with the shared {@link GroupKey} and the same bytes are written to every
+ * recipient that holds the current key.
+ */
+public class Broadcaster {
+
+	private static final int LATENCY_SAMPLES = 4096;
+
+	private ExecutorService pool;
+	private int queueCapacity;
+	private SlowConsumerPolicy policy;
+	private long blockTimeout;
+	private GroupKey groupKey;
+	private LatencyRecorder latency;
+	private AtomicLong messages;
+	private AtomicLong dropped;
+	private AtomicLong disconnected;
+
+	/**
+	 * Reads {@code broadcast.queue.capacity}, {@code broadcast.policy},
+	 * {@code broadcast.block.timeout}, {@code broadcast.groupkey} and
+	 * {@code broadcast.groupkey.lifetime} from the given configuration. The
+	 * {@link SlowConsumerPolicy#BLOCK} policy is not available in
+	 * {@code tcp.mode=nio}, where senders are reactor threads.
+	 *
+	 * @param config
+	 *            the chatserver configuration
+	 * @param pool
+	 *            the pool writer tasks are run on
+	 */
+	public Broadcaster(Config config, ExecutorService pool) {
+		this.pool = pool;
+		this.queueCapacity = config.getInt("broadcast.queue.capacity");
+		this.policy = SlowConsumerPolicy
+				.valueOf(config.getString("broadcast.policy").trim().toUpperCase());
+		if (policy == SlowConsumerPolicy.BLOCK && config.listKeys().contains("tcp.mode")
+				&& config.getString("tcp.mode").equals("nio")) {
+			// a waiting reactor thread would stall all of its connections
+			System.err.println("broadcast.policy 'block' is not supported in nio mode,"
+					+ " using 'drop_oldest' instead.");
+			this.policy = SlowConsumerPolicy.DROP_OLDEST;
+		}
+		this.blockTimeout = config.getInt("broadcast.block.timeout");
+		if (Boolean.parseBoolean(config.getString("broadcast.groupkey"))) {
+			this.groupKey = new GroupKey(config.getInt("broadcast.groupkey.lifetime"));
+		}
+		this.latency = new LatencyRecorder(LATENCY_SAMPLES);
+		this.messages = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.disconnected = new AtomicLong();
+	}
+
+	/**
+	 * @return a new, empty outbound queue for the given connection
+	 */
+	public OutboundQueue newQueue(TCPConnection connection) {
+		return new OutboundQueue(this, connection, queueCapacity);
+	}
+
+	/**
+	 * Queues the message for every logged in connection except the sender.
+	 *
+	 * @param sender
+	 *            the connection the message originates from
+	 * @param message
+	 *            the complete, encoded message
+	 * @param connections
+	 *            the connections of all logged in users
+	 */
+	public void broadcast(TCPConnection sender, String message,
+			Iterable<TCPConnection> connections) {
+		messages.incrementAndGet();
+		Frame frame = null;
+		long epoch = -1;
+		if (groupKey != null) {
+			GroupKey.Epoch rotated = groupKey.rotateIfExpired();
+			if (rotated != null) {
+				announce(rotated, connections);
+			}
+			GroupKey.Epoch current = groupKey.current();
+			frame = current.encrypt(message);
+			epoch = current.getNumber();
+		}
+		long now = System.nanoTime();
+		for (TCPConnection conn : connections) {
+			if (conn != sender && conn.getUser() != null) {
+				conn.getOutboundQueue().offer(Delivery.message(message, frame, epoch, now));
+			}
+		}
+	}
+
+	private void announce(GroupKey.Epoch epoch, Iterable<TCPConnection> connections) {
+		Delivery announcement = Delivery.announcement(epoch.announcement(), epoch.getNumber());
+		for (TCPConnection conn : connections) {
+			if (conn.getUser() != null) {
+				conn.getOutboundQueue().offer(announcement);
+			}
+		}
+	}
+
+	/**
+	 * Hands the current group key to a connection that is about to join. Must
+	 * be called before the connection's user is set, so that no group
+	 * encrypted message can reach the client ahead of its key.
+	 */
+	public void welcome(TCPConnection connection) {
+		if (groupKey != null) {
+			GroupKey.Epoch current = groupKey.current();
+			connection.getTcpChannel().send(current.announcement());
+			connection.setGroupEpoch(current.getNumber());
+		}
+	}
+
+	/**
+	 * @return broadcast counters and delivery latency percentiles
+	 */
+	public String stats() {
+		return "Broadcast: " + messages.get() + " messages, " + latency.count() + " deliveries, "
+				+ dropped.get() + " dropped, " + disconnected.get() + " slow consumers disconnected"
+				+ "\nDelivery latency: " + latency.summary();
+	}
+
+	ExecutorService getPool() {
+		return pool;
+	}
+
+	SlowConsumerPolicy getPolicy() {
+		return policy;
+	}
+
+	long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	void delivered(long nanos) {
+		latency.record(nanos);
+	}
+
+	void dropped() {
+		dropped.incrementAndGet();
+	}
+
+	void disconnected() {
+		disconnected.incrementAndGet();
+	}
+}
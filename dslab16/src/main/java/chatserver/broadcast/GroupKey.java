@@ -0,0 +1,100 @@
+package chatserver.broadcast;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.KeyGenerator;
+
+import channels.Frame;
+import channels.GroupKeys;
+
+/**
+ * Shared AES key public messages are encrypted with once for all recipients.
+ * The key is replaced by a new epoch after its lifetime has passed; members
+ * learn each key through an announcement on their own session channel.
+ */
+public class GroupKey {
+
+	private static final int KEY_SIZE = 256;
+
+	private AtomicReference<Epoch> current;
+	private long lifetimeNanos;
+
+	/**
+	 * @param lifetimeSeconds
+	 *            seconds after which a key is replaced
+	 */
+	public GroupKey(long lifetimeSeconds) {
+		this.lifetimeNanos = lifetimeSeconds * 1000000000L;
+		this.current = new AtomicReference<>(new Epoch(0, newKey()));
+	}
+
+	/**
+	 * @return the epoch public messages are currently encrypted with
+	 */
+	public Epoch current() {
+		return current.get();
+	}
+
+	/**
+	 * Starts a new epoch if the current key has expired. Of several concurrent
+	 * callers only one performs the rotation.
+	 *
+	 * @return the new epoch, or null if no rotation was performed by this call
+	 */
+	public Epoch rotateIfExpired() {
+		Epoch epoch = current.get();
+		if (System.nanoTime() - epoch.createdAt < lifetimeNanos) {
+			return null;
+		}
+		Epoch next = new Epoch(epoch.number + 1, newKey());
+		return current.compareAndSet(epoch, next) ? next : null;
+	}
+
+	/**
+	 * Generates a key with a generator of its own, as concurrent rotations
+	 * must not share a {@link KeyGenerator}.
+	 */
+	private static byte[] newKey() {
+		try {
+			KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+			keyGenerator.init(KEY_SIZE);
+			return keyGenerator.generateKey().getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Cannot create group keys.", e);
+		}
+	}
+
+	/**
+	 * One generation of the group key.
+	 */
+	public static class Epoch {
+		private long number;
+		private byte[] key;
+		private long createdAt;
+
+		private Epoch(long number, byte[] key) {
+			this.number = number;
+			this.key = key;
+			this.createdAt = System.nanoTime();
+		}
+
+		public long getNumber() {
+			return number;
+		}
+
+		/**
+		 * @return the session message handing this key to a member
+		 */
+		public String announcement() {
+			return GroupKeys.announcement(number, key);
+		}
+
+		/**
+		 * @return the group frame carrying the encrypted message
+		 */
+		public Frame encrypt(String message) {
+			return GroupKeys.frame(number, key, message.getBytes());
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package chatserver.broadcast;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import channels.Channel;
+import channels.Frame;
+import chatserver.tcp.TCPConnection;
+
+/**
+ * Bounded queue of public messages waiting to be written to one connection.
+ * A writer task is scheduled on the {@link Broadcaster}'s pool whenever the
+ * queue turns non-empty and drains it, so a slow socket only ever delays its
+ * own queue.
+ */
+public class OutboundQueue implements Runnable {
+
+	private Broadcaster broadcaster;
+	private TCPConnection connection;
+	private BlockingQueue<Delivery> queue;
+	private AtomicBoolean scheduled;
+
+	OutboundQueue(Broadcaster broadcaster, TCPConnection connection, int capacity) {
+		this.broadcaster = broadcaster;
+		this.connection = connection;
+		this.queue = new LinkedBlockingQueue<>(capacity);
+		this.scheduled = new AtomicBoolean();
+	}
+
+	/**
+	 * Queues a delivery according to the broadcaster's slow-consumer policy.
+	 * {@link SlowConsumerPolicy#DROP_OLDEST} only ever drops public messages;
+	 * a notice is turned away if nothing else is queued to make room for it.
+	 *
+	 * @return false if the delivery was not queued
+	 */
+	boolean offer(Delivery delivery) {
+		boolean queued = queue.offer(delivery);
+		if (!queued) {
+			switch (broadcaster.getPolicy()) {
+			case DROP_OLDEST:
+				while (!queued && dropOldestMessage()) {
+					broadcaster.dropped();
+					queued = queue.offer(delivery);
+				}
+				if (!queued) {
+					// the writer may have made room meanwhile
+					queued = queue.offer(delivery);
+				}
+				if (!queued && !delivery.notice && !delivery.announcement) {
+					broadcaster.dropped();
+				}
+				break;
+			case DISCONNECT:
+				broadcaster.disconnected();
+				queue.clear();
+				connection.disconnect();
+				return false;
+			case BLOCK:
+				try {
+					queued = queue.offer(delivery, broadcaster.getBlockTimeout(),
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (!queued) {
+					broadcaster.dropped();
+				}
+				break;
+			}
+		}
+		if (queued) {
+			schedule();
+		}
+		return queued;
+	}
+
+	/**
+	 * Removes the oldest public message. Notices and key announcements are
+	 * kept, since a client could not tell that one of them went missing.
+	 *
+	 * @return false if no public message is queued
+	 */
+	private boolean dropOldestMessage() {
+		Iterator<Delivery> deliveries = queue.iterator();
+		while (deliveries.hasNext()) {
+			Delivery queued = deliveries.next();
+			if (!queued.notice && !queued.announcement) {
+				deliveries.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				broadcaster.getPool().execute(this);
+			} catch (RejectedExecutionException e) {
+				// server is shutting down
+				queue.clear();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		do {
+			Delivery delivery;
+			while ((delivery = queue.poll()) != null) {
+				write(delivery);
+			}
+			scheduled.set(false);
+		} while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+	}
+
+	private void write(Delivery delivery) {
+		Channel channel = connection.getSessionChannel();
+		if (channel == null) {
+			// the recipient has logged out since the message was queued
+			return;
+		}
+		if (delivery.announcement) {
+			channel.send(delivery.message);
+			connection.setGroupEpoch(delivery.epoch);
+			return;
+		}
+		if (delivery.notice) {
+			channel.send(delivery.message);
+			return;
+		}
+		if (delivery.frame != null && connection.getGroupEpoch() == delivery.epoch) {
+			// same bytes for every recipient, bypassing the session encryption
+			channel.getDecoratedChannel().sendFrame(delivery.frame);
+		} else {
+			channel.send(delivery.message);
+		}
+		broadcaster.delivered(System.nanoTime() - delivery.enqueuedAt);
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * A queued public message, optionally with its group encrypted frame, the
+	 * announcement of a new group key, or a notice such as a presence update
+	 * that is not counted as a public message delivery.
+	 */
+	static class Delivery {
+		private String message;
+		private Frame frame;
+		private long epoch;
+		private boolean announcement;
+		private boolean notice;
+		private long enqueuedAt;
+
+		private Delivery(String message, Frame frame, long epoch, boolean announcement,
+				boolean notice, long enqueuedAt) {
+			this.message = message;
+			this.frame = frame;
+			this.epoch = epoch;
+			this.announcement = announcement;
+			this.notice = notice;
+			this.enqueuedAt = enqueuedAt;
+		}
+
+		static Delivery message(String message, Frame frame, long epoch, long enqueuedAt) {
+			return new Delivery(message, frame, epoch, false, false, enqueuedAt);
+		}
+
+		static Delivery announcement(String announcement, long epoch) {
+			return new Delivery(announcement, null, epoch, true, false, System.nanoTime());
+		}
+
+		static Delivery notice(String notice) {
+			return new Delivery(notice, null, -1, false, true, System.nanoTime());
+		}
+	}
+}
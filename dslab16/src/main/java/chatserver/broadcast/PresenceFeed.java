@@ -0,0 +1,192 @@
+package chatserver.broadcast;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chatserver.broadcast.OutboundQueue.Delivery;
+import chatserver.tcp.TCPConnection;
+import model.UserRegistry;
+import util.Config;
+
+/**
+ * Pushes changes of the online set to subscribed connections, so they do not
+ * have to poll {@code !list}. A new subscriber gets a snapshot, afterwards
+ * only deltas. Changes are collected for {@code presence.window}
+ * milliseconds and sent as one update; a user who logs in and out again
+ * within the window does not show up at all.
+ * <p/>
+ * Snapshots and updates go through the subscriber's {@link OutboundQueue},
+ * so they are encrypted for the session and ordered with public messages.
+ * They are queued on the timer thread, outside the feed's lock, so a slow
+ * subscriber never holds up logins and logouts. A subscriber whose queue
+ * turned an update away gets a fresh snapshot instead.
+ * Wire format: {@code !snapshot name...} and {@code !presence +name -name...}.
+ */
+public class PresenceFeed {
+
+	private static final long DEFAULT_WINDOW = 250;
+
+	private UserRegistry users;
+	private long window;
+	private ScheduledExecutorService timer;
+	private Set<TCPConnection> subscribers;
+	private Set<TCPConnection> resyncing;
+	// state as last sent to the subscribers, guarded by this
+	private Set<String> published;
+	private Set<String> pending;
+	private boolean scheduled;
+	private AtomicLong updates;
+	private AtomicLong changes;
+	private AtomicLong coalesced;
+
+	/**
+	 * Reads the optional {@code presence.window} from the given configuration
+	 * and starts listening to the registry.
+	 */
+	public PresenceFeed(Config config, UserRegistry users) {
+		this.users = users;
+		this.window = config.listKeys().contains("presence.window")
+				? config.getInt("presence.window") : DEFAULT_WINDOW;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "presence");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.subscribers = ConcurrentHashMap.newKeySet();
+		this.resyncing = ConcurrentHashMap.newKeySet();
+		this.published = new TreeSet<>(users.online());
+		this.pending = new LinkedHashSet<>();
+		this.updates = new AtomicLong();
+		this.changes = new AtomicLong();
+		this.coalesced = new AtomicLong();
+		users.addListener(this::changed);
+	}
+
+	/**
+	 * Sends the connection a snapshot of the online users and from then on
+	 * every update.
+	 */
+	public void subscribe(TCPConnection connection) {
+		// no update may reach it before the snapshot
+		resyncing.add(connection);
+		subscribers.add(connection);
+		resync(connection, 0);
+	}
+
+	/**
+	 * @return false if the connection was not subscribed
+	 */
+	public boolean unsubscribe(TCPConnection connection) {
+		return subscribers.remove(connection);
+	}
+
+	private synchronized void changed(String name) {
+		changes.incrementAndGet();
+		pending.add(name);
+		if (!scheduled) {
+			try {
+				timer.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+				scheduled = true;
+			} catch (RejectedExecutionException e) {
+				// server is shutting down
+			}
+		}
+	}
+
+	private void flush() {
+		String update = collect();
+		if (update == null) {
+			return;
+		}
+		updates.incrementAndGet();
+		for (TCPConnection conn : subscribers) {
+			if (conn.getUser() == null) {
+				subscribers.remove(conn);
+			} else if (!resyncing.contains(conn)
+					&& !conn.getOutboundQueue().offer(Delivery.notice(update))) {
+				// the subscriber's view is incomplete from here on
+				resync(conn, window);
+			}
+		}
+	}
+
+	/**
+	 * Applies the pending changes to the published state.
+	 *
+	 * @return the update to send, or null if nothing changed
+	 */
+	private synchronized String collect() {
+		scheduled = false;
+		StringBuilder update = new StringBuilder("!presence");
+		Iterator<String> names = pending.iterator();
+		while (names.hasNext()) {
+			String name = names.next();
+			names.remove();
+			boolean online = users.online().contains(name);
+			if (online == published.contains(name)) {
+				coalesced.incrementAndGet();
+				continue;
+			}
+			if (online) {
+				published.add(name);
+			} else {
+				published.remove(name);
+			}
+			update.append(' ').append(online ? '+' : '-').append(name);
+		}
+		return update.length() == "!presence".length() ? null : update.toString();
+	}
+
+	private synchronized String snapshot() {
+		StringBuilder snapshot = new StringBuilder("!snapshot");
+		for (String name : published) {
+			snapshot.append(' ').append(name);
+		}
+		return snapshot.toString();
+	}
+
+	/**
+	 * Holds back updates for the connection until it has been sent a new
+	 * snapshot, after the given delay. Like updates, snapshots are sent on
+	 * the timer thread, so the two cannot overtake each other.
+	 */
+	private void resync(TCPConnection connection, long delay) {
+		resyncing.add(connection);
+		try {
+			timer.schedule(() -> {
+				if (!subscribers.contains(connection) || connection.getUser() == null) {
+					resyncing.remove(connection);
+				} else if (connection.getOutboundQueue().offer(Delivery.notice(snapshot()))) {
+					resyncing.remove(connection);
+				} else {
+					resync(connection, window);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// server is shutting down
+		}
+	}
+
+	/**
+	 * Stops the timer; pending changes are not sent any more.
+	 */
+	public void close() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * @return subscribers, sent updates and changes that cancelled out
+	 */
+	public String stats() {
+		return "Presence: " + subscribers.size() + " subscribers, " + updates.get()
+				+ " updates, " + changes.get() + " changes, " + coalesced.get() + " coalesced";
+	}
+}
@@ -0,0 +1,24 @@
+package chatserver.broadcast;
+
+/**
+ * What a {@link Broadcaster} does when a recipient's outbound queue is full.
+ */
+public enum SlowConsumerPolicy {
+
+	/**
+	 * Discard the oldest queued public message to make room for the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Disconnect the recipient, it is logged out like on a closed connection.
+	 */
+	DISCONNECT,
+
+	/**
+	 * Let the sender wait for free space up to the configured timeout, then
+	 * discard the new message. Only available with blocking connections; in
+	 * nio mode the sender would be a reactor thread.
+	 */
+	BLOCK
+}
@@ -0,0 +1,203 @@
+package chatserver.naming;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nameserver.INameserverForChatserver;
+import nameserver.exceptions.AlreadyRegisteredException;
+import nameserver.exceptions.InvalidDomainException;
+import util.Config;
+
+/**
+ * Talks to the nameservers on behalf of connections without blocking them:
+ * every call returns a future that completes once the nameserver answered.
+ * Remote calls run on at most {@code nameserver.workers} threads with up to
+ * {@code nameserver.queue} more waiting, and a call not answered within
+ * {@code nameserver.timeout} milliseconds fails. Lookups of a name already in
+ * flight share its future, and cached names are answered right away.
+ */
+public class NameserverClient {
+
+	private static final int DEFAULT_WORKERS = 4;
+	private static final int DEFAULT_QUEUE = 256;
+	private static final int DEFAULT_TIMEOUT = 5000;
+
+	private Config config;
+	private ResolutionCache cache;
+	private ThreadPoolExecutor executor;
+	private long timeout;
+	private volatile INameserverForChatserver root;
+	private ConcurrentHashMap<String, CompletableFuture<String>> lookups;
+	private AtomicLong calls;
+	private AtomicLong coalesced;
+	private AtomicLong rejected;
+	private AtomicLong timedOut;
+
+	/**
+	 * Reads the optional {@code nameserver.workers}, {@code nameserver.queue}
+	 * and {@code nameserver.timeout} as well as the registry settings from the
+	 * given configuration.
+	 *
+	 * @param cache
+	 *            the cache lookups are answered from
+	 */
+	public NameserverClient(Config config, ResolutionCache cache) {
+		this.config = config;
+		this.cache = cache;
+		int workers = config.listKeys().contains("nameserver.workers")
+				? config.getInt("nameserver.workers") : DEFAULT_WORKERS;
+		int queue = config.listKeys().contains("nameserver.queue")
+				? config.getInt("nameserver.queue") : DEFAULT_QUEUE;
+		this.timeout = config.listKeys().contains("nameserver.timeout")
+				? config.getInt("nameserver.timeout") : DEFAULT_TIMEOUT;
+		AtomicInteger threads = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+					Thread thread = new Thread(r, "nameserver-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.lookups = new ConcurrentHashMap<>();
+		this.calls = new AtomicLong();
+		this.coalesced = new AtomicLong();
+		this.rejected = new AtomicLong();
+		this.timedOut = new AtomicLong();
+	}
+
+	/**
+	 * Registers the user's private address with the root nameserver.
+	 *
+	 * @return the root nameserver the address was registered with
+	 */
+	public CompletableFuture<INameserverForChatserver> register(String username,
+			String address) {
+		return call(() -> {
+			INameserverForChatserver ns = root();
+			try {
+				ns.registerUser(username, address);
+			} catch (AlreadyRegisteredException e) {
+			}
+			cache.invalidate(username);
+			return ns;
+		});
+	}
+
+	/**
+	 * Resolves a fully qualified username, see
+	 * {@link ResolutionCache#resolve(INameserverForChatserver, String)}.
+	 *
+	 * @return the address, null if the user is not registered
+	 */
+	public CompletableFuture<String> lookup(String name) {
+		ResolutionCache.Entry cached = cache.cached(name);
+		if (cached != null) {
+			if (cached.getError() != null) {
+				CompletableFuture<String> failed = new CompletableFuture<>();
+				failed.completeExceptionally(new InvalidDomainException(cached.getError()));
+				return failed;
+			}
+			return CompletableFuture.completedFuture(cached.getAddress());
+		}
+		CompletableFuture<String> lookup = new CompletableFuture<>();
+		CompletableFuture<String> inFlight = lookups.putIfAbsent(name, lookup);
+		if (inFlight != null) {
+			coalesced.incrementAndGet();
+			return inFlight;
+		}
+		call(() -> cache.resolve(root(), name)).whenComplete((address, error) -> {
+			lookups.remove(name, lookup);
+			if (error != null) {
+				lookup.completeExceptionally(error);
+			} else {
+				lookup.complete(address);
+			}
+		});
+		return lookup;
+	}
+
+	/**
+	 * Runs a remote call on the workers.
+	 */
+	private <T> CompletableFuture<T> call(Callable<T> remoteCall) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Future<?> task;
+		try {
+			task = executor.submit(() -> {
+				try {
+					result.complete(remoteCall.call());
+				} catch (RemoteException e) {
+					// the root may have been restarted, bind it anew next time
+					root = null;
+					result.completeExceptionally(e);
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			result.completeExceptionally(
+					new RemoteException("Too many pending nameserver requests."));
+			return result;
+		}
+		calls.incrementAndGet();
+		result.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((value, error) -> {
+			if (error instanceof TimeoutException) {
+				timedOut.incrementAndGet();
+				task.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	private INameserverForChatserver root() throws RemoteException, NotBoundException {
+		INameserverForChatserver ns = root;
+		if (ns == null) {
+			Registry reg = LocateRegistry.getRegistry(config.getString("registry.host"),
+					config.getInt("registry.port"));
+			ns = (INameserverForChatserver) reg.lookup(config.getString("root_id"));
+			root = ns;
+		}
+		return ns;
+	}
+
+	/**
+	 * @return a message explaining why a call failed
+	 */
+	public static String reason(Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
+		}
+		if (error instanceof TimeoutException) {
+			return "Nameserver did not answer in time.";
+		}
+		return error.getMessage();
+	}
+
+	/**
+	 * @return remote call counters
+	 */
+	public String stats() {
+		return "Nameserver client: " + calls.get() + " calls, " + coalesced.get() + " coalesced, "
+				+ rejected.get() + " rejected, " + timedOut.get() + " timed out, "
+				+ executor.getActiveCount() + " running, " + executor.getQueue().size()
+				+ " queued";
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+}
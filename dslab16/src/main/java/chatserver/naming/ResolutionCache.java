@@ -0,0 +1,189 @@
+package chatserver.naming;
+
+import java.rmi.RemoteException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import nameserver.INameserverForChatserver;
+import nameserver.exceptions.InvalidDomainException;
+import util.Config;
+
+/**
+ * Remembers the address each user resolved to. A repeated lookup is answered
+ * without any remote call; any other lookup costs a single
+ * {@link INameserverForChatserver#resolve(String)} on the root, which walks
+ * the zones on the nameservers' side. Unknown users and zones are remembered
+ * for a shorter time.
+ */
+public class ResolutionCache {
+
+	private static final int DEFAULT_TTL = 60;
+	private static final int DEFAULT_NEGATIVE_TTL = 5;
+	private static final int DEFAULT_SIZE = 10000;
+
+	private long ttl;
+	private long negativeTtl;
+	private int size;
+	private ConcurrentHashMap<String, Entry> addresses;
+	// bumped by every invalidation of a name, so a resolution that was under
+	// way meanwhile does not put the old answer back
+	private ConcurrentHashMap<String, Long> generations;
+	private LongAdder hits;
+	private LongAdder misses;
+	private LongAdder remoteCalls;
+	private LongAdder avoided;
+
+	/**
+	 * Reads the optional {@code lookup.cache.ttl} and
+	 * {@code lookup.cache.negative.ttl}, both in seconds with 0 disabling the
+	 * respective entries, and {@code lookup.cache.size} from the given
+	 * configuration.
+	 */
+	public ResolutionCache(Config config) {
+		this.ttl = seconds(config, "lookup.cache.ttl", DEFAULT_TTL);
+		this.negativeTtl = seconds(config, "lookup.cache.negative.ttl", DEFAULT_NEGATIVE_TTL);
+		this.size = config.listKeys().contains("lookup.cache.size")
+				? config.getInt("lookup.cache.size") : DEFAULT_SIZE;
+		this.addresses = new ConcurrentHashMap<>();
+		this.generations = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.remoteCalls = new LongAdder();
+		this.avoided = new LongAdder();
+	}
+
+	private static long seconds(Config config, String key, int defaultValue) {
+		int seconds = config.listKeys().contains(key) ? config.getInt(key) : defaultValue;
+		return TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+	}
+
+	/**
+	 * Resolves a fully qualified username such as {@code alice.vienna.at}.
+	 *
+	 * @param root
+	 *            the root nameserver
+	 * @return the registered address, or null if the user is not registered
+	 * @throws InvalidDomainException
+	 *             if one of the zones does not exist
+	 */
+	public String resolve(INameserverForChatserver root, String name)
+			throws RemoteException, InvalidDomainException {
+		Entry cached = cached(name);
+		if (cached != null) {
+			if (cached.error != null) {
+				throw new InvalidDomainException(cached.error);
+			}
+			return cached.address;
+		}
+		long now = System.nanoTime();
+		Long generation = generations.get(name);
+		misses.increment();
+		remoteCalls.increment();
+		try {
+			String resolved = root.resolve(name);
+			put(name, generation, new Entry(resolved, null,
+					now + (resolved != null ? ttl : negativeTtl)));
+			return resolved;
+		} catch (InvalidDomainException e) {
+			put(name, generation, new Entry(null, e.getMessage(), now + negativeTtl));
+			throw e;
+		}
+	}
+
+	/**
+	 * Answers the name from the cache only; a miss is not counted.
+	 *
+	 * @return the cached answer, or null if the name would need a remote call
+	 */
+	public Entry cached(String name) {
+		Entry cached = addresses.get(name);
+		if (cached == null || !cached.isValid(System.nanoTime())) {
+			return null;
+		}
+		// walking the zones would have cost one call per zone plus the final
+		// lookup
+		int walk = 1;
+		for (int i = name.indexOf('.'); i != -1; i = name.indexOf('.', i + 1)) {
+			walk++;
+		}
+		hits.increment();
+		avoided.add(walk);
+		return cached;
+	}
+
+	/**
+	 * Caches the entry unless the name was invalidated since its resolution
+	 * started, i.e. its generation is no longer the given one.
+	 */
+	private void put(String name, Long generation, Entry entry) {
+		long now = System.nanoTime();
+		if (!entry.isValid(now)) {
+			return;
+		}
+		if (addresses.size() >= size) {
+			addresses.values().removeIf(cached -> !cached.isValid(now));
+			if (addresses.size() >= size) {
+				return;
+			}
+		}
+		// serialized with invalidate() on the generation of the name
+		generations.compute(name, (key, current) -> {
+			if (Objects.equals(current, generation)) {
+				addresses.put(name, entry);
+			}
+			return current;
+		});
+	}
+
+	/**
+	 * Forgets the cached address of the user, e.g. because the user has
+	 * registered a new one. Resolutions still under way are not cached.
+	 */
+	public void invalidate(String name) {
+		generations.merge(name, 1L, Long::sum);
+		addresses.remove(name);
+	}
+
+	/**
+	 * @return hit ratio, remote calls made and avoided and the number of
+	 *         cached entries
+	 */
+	public String stats() {
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return "Resolution cache: " + hit + " hits, " + (total - hit) + " misses ("
+				+ (total == 0 ? 0 : hit * 100 / total) + "% hit ratio), " + remoteCalls.sum()
+				+ " RMI calls, " + avoided.sum() + " avoided, " + addresses.size()
+				+ " addresses";
+	}
+
+	/**
+	 * A resolved address, or the reason a name does not resolve; both are
+	 * null for users that are not registered.
+	 */
+	public static class Entry {
+		private String address;
+		private String error;
+		private long expiresAt;
+
+		private Entry(String address, String error, long expiresAt) {
+			this.address = address;
+			this.error = error;
+			this.expiresAt = expiresAt;
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		private boolean isValid(long now) {
+			return now - expiresAt < 0;
+		}
+	}
+}
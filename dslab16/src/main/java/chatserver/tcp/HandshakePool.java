@@ -0,0 +1,90 @@
+package chatserver.tcp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Config;
+import util.LatencyRecorder;
+
+/**
+ * Runs the RSA part of handshakes on a small, fixed set of worker threads, so
+ * a burst of logins cannot take the CPU away from established sessions. At
+ * most {@code handshake.workers} handshakes run at once and up to
+ * {@code handshake.queue} more wait; beyond that new handshakes are turned
+ * away right away and the client is told the server is busy.
+ */
+public class HandshakePool {
+
+	private static final int DEFAULT_QUEUE = 64;
+	private static final int LATENCY_SAMPLES = 1024;
+
+	private ThreadPoolExecutor executor;
+	private AtomicLong admitted;
+	private AtomicLong rejected;
+	private LatencyRecorder latency;
+
+	/**
+	 * Reads the optional {@code handshake.workers}, by default half of the
+	 * available processors, and {@code handshake.queue} from the given
+	 * configuration.
+	 */
+	public HandshakePool(Config config) {
+		int workers = config.listKeys().contains("handshake.workers")
+				? config.getInt("handshake.workers")
+				: Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		int queue = config.listKeys().contains("handshake.queue")
+				? config.getInt("handshake.queue") : DEFAULT_QUEUE;
+		AtomicInteger threads = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+					Thread thread = new Thread(r, "handshake-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.admitted = new AtomicLong();
+		this.rejected = new AtomicLong();
+		this.latency = new LatencyRecorder(LATENCY_SAMPLES);
+	}
+
+	/**
+	 * Queues a handshake step.
+	 *
+	 * @return the pending step, or null if the pool is saturated
+	 */
+	public Future<?> submit(Runnable handshake) {
+		long queuedAt = System.nanoTime();
+		try {
+			Future<?> future = executor.submit(() -> {
+				try {
+					handshake.run();
+				} finally {
+					latency.record(System.nanoTime() - queuedAt);
+				}
+			});
+			admitted.incrementAndGet();
+			return future;
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return null;
+		}
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return admitted and rejected handshakes, current load and the time from
+	 *         admission to completion
+	 */
+	public String stats() {
+		return "Handshakes: " + admitted.get() + " admitted, " + rejected.get() + " busy, "
+				+ executor.getActiveCount() + " running, " + executor.getQueue().size()
+				+ " queued\nHandshake latency: " + latency.summary();
+	}
+}
@@ -0,0 +1,138 @@
+package chatserver.tcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.Key;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import channels.Channel;
+import chatserver.broadcast.Broadcaster;
+import chatserver.broadcast.PresenceFeed;
+import chatserver.naming.NameserverClient;
+import channels.NioTCPChannel;
+import channels.RSAChannel;
+import model.UserRegistry;
+import util.Config;
+import util.Keys;
+import util.PublicKeyStore;
+
+/**
+ * Accepts connections on a non-blocking server socket and distributes them
+ * round-robin over a fixed set of {@link Reactor}s, so that the number of
+ * threads does not grow with the number of connected clients.
+ */
+public class NioTCPListener extends Thread {
+
+	private ServerSocketChannel serverSocketChannel;
+	private ExecutorService pool;
+	private UserRegistry users;
+	private SessionDirectory sessions;
+	private Broadcaster broadcaster;
+	private PresenceFeed presence;
+	private PublicKeyStore publicKeys;
+	private HandshakePool handshakes;
+	private NameserverClient nameservers;
+	private Set<TCPConnection> allConnections;
+	private PrintStream userResponseStream;
+	private Key chatserverPrivateKey;
+	private Selector selector;
+	private Reactor[] reactors;
+	private int nextReactor;
+
+	public NioTCPListener(ServerSocketChannel serverSocketChannel, int reactorCount,
+			ExecutorService pool, UserRegistry users, SessionDirectory sessions,
+			Broadcaster broadcaster, PresenceFeed presence, PublicKeyStore publicKeys,
+			HandshakePool handshakes, NameserverClient nameservers, PrintStream userResponseStream)
+			throws IOException {
+		this.serverSocketChannel = serverSocketChannel;
+		this.pool = pool;
+		this.users = users;
+		this.sessions = sessions;
+		this.broadcaster = broadcaster;
+		this.presence = presence;
+		this.publicKeys = publicKeys;
+		this.handshakes = handshakes;
+		this.nameservers = nameservers;
+		this.allConnections = ConcurrentHashMap.newKeySet();
+		this.userResponseStream = userResponseStream;
+		this.selector = Selector.open();
+		this.reactors = new Reactor[reactorCount];
+		for (int i = 0; i < reactorCount; i++) {
+			reactors[i] = new Reactor();
+		}
+
+		try {
+			this.chatserverPrivateKey = Keys
+					.readPrivatePEM(new File(new Config("chatserver").getString("key")));
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public void run() {
+		for (Reactor reactor : reactors) {
+			pool.execute(reactor);
+		}
+
+		try {
+			serverSocketChannel.configureBlocking(false);
+			serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+			while (!Thread.currentThread().isInterrupted()) {
+				selector.select();
+				selector.selectedKeys().clear();
+
+				SocketChannel socketChannel;
+				while ((socketChannel = serverSocketChannel.accept()) != null) {
+					NioTCPChannel nioChannel = new NioTCPChannel(socketChannel);
+					Channel tcpChannel = new RSAChannel(nioChannel, chatserverPrivateKey);
+					TCPConnection tcpConn = new TCPConnection(tcpChannel, allConnections, users,
+							sessions, broadcaster, presence, publicKeys, handshakes, nameservers,
+							userResponseStream);
+					allConnections.add(tcpConn);
+					reactors[nextReactor].register(tcpConn, nioChannel);
+					nextReactor = (nextReactor + 1) % reactors.length;
+				}
+			}
+		} catch (ClosedSelectorException e) {
+		} catch (IOException e) {
+			if (serverSocketChannel.isOpen()) {
+				System.err.println("Error occurred while waiting for client: " + e.getMessage());
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Stops accepting connections, closes all open connections and shuts the
+	 * reactors down.
+	 */
+	public void close() {
+		try {
+			serverSocketChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			System.err.println("Error while closing server socket: " + e.getMessage());
+		}
+		try {
+			for (TCPConnection conn : allConnections) {
+				if (conn.getTcpChannel() != null) {
+					conn.getTcpChannel().close();
+				}
+			}
+		} catch (SocketException e) {
+			System.err.println("Error while closing all TCP connections: " + e.getMessage());
+		}
+		for (Reactor reactor : reactors) {
+			reactor.close();
+		}
+	}
+}
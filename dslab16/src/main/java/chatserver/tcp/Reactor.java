@@ -0,0 +1,160 @@
+package chatserver.tcp;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import channels.NioTCPChannel;
+
+/**
+ * Selector loop serving a share of the connections in NIO mode. It reads and
+ * splits incoming data, lets the owning {@link TCPConnection} handle every
+ * complete request and flushes queued output once a socket becomes writable.
+ * <p/>
+ * Handshakes run on the {@link HandshakePool}; meanwhile the connection's
+ * requests stay buffered, and the worker hands the connection back to the
+ * reactor once it is done.
+ */
+public class Reactor extends Thread {
+
+	private Selector selector;
+	private Queue<Session> pending;
+	private Queue<Session> handshaken;
+	private volatile boolean closed;
+
+	public Reactor() throws IOException {
+		this.selector = Selector.open();
+		this.pending = new ConcurrentLinkedQueue<>();
+		this.handshaken = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Hands a freshly accepted connection over to this reactor. May be called
+	 * from any thread.
+	 */
+	public void register(TCPConnection connection, NioTCPChannel channel) {
+		Session session = new Session(connection, channel);
+		connection.setHandshakeCallback(() -> {
+			handshaken.add(session);
+			selector.wakeup();
+		});
+		pending.add(session);
+		selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			while (!closed && !Thread.currentThread().isInterrupted()) {
+				selector.select();
+				registerPending();
+				Session resumed;
+				while ((resumed = handshaken.poll()) != null) {
+					handle(resumed);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Session session = (Session) key.attachment();
+					try {
+						if (key.isWritable()) {
+							session.channel.flush();
+						}
+						if (key.isValid() && key.isReadable()) {
+							read(session);
+						}
+					} catch (CancelledKeyException e) {
+						close(session);
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+		} catch (IOException e) {
+			System.err.println("Error occurred in reactor loop: " + e.getMessage());
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				System.err.println("Error while closing reactor: " + e.getMessage());
+			}
+		}
+	}
+
+	private void registerPending() {
+		Session session;
+		while ((session = pending.poll()) != null) {
+			try {
+				session.channel.register(selector, session);
+			} catch (ClosedChannelException e) {
+				close(session);
+			}
+		}
+	}
+
+	private void read(Session session) {
+		try {
+			boolean open = session.channel.fill();
+			if (handle(session) && !open) {
+				close(session);
+			}
+		} catch (SocketException e) {
+			close(session);
+		} catch (IOException e) {
+			System.err.println("Error occurred while communicating with client: " + e.getMessage());
+			close(session);
+		}
+	}
+
+	/**
+	 * Handles the buffered requests of the session, up to the next handshake.
+	 *
+	 * @return false if the session had to be closed
+	 */
+	private boolean handle(Session session) {
+		try {
+			while (session.channel.hasFrame() && !session.channel.getSocket().isClosed()
+					&& !session.connection.isHandshaking()) {
+				session.connection.handleRequest();
+			}
+			return true;
+		} catch (SocketException e) {
+		} catch (IOException e) {
+			System.err.println("Error occurred while communicating with client: " + e.getMessage());
+		} catch (RuntimeException e) {
+		}
+		close(session);
+		return false;
+	}
+
+	private void close(Session session) {
+		session.connection.logout();
+		session.connection.exit();
+		session.channel.releaseBuffers();
+	}
+
+	/**
+	 * Stops the selector loop. Connections are closed by the listener.
+	 */
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	private static class Session {
+		private TCPConnection connection;
+		private NioTCPChannel channel;
+
+		private Session(TCPConnection connection, NioTCPChannel channel) {
+			this.connection = connection;
+			this.channel = channel;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package chatserver.tcp;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nameserver.INameserverForChatserver;
+
+/**
+ * The sessions of all logged in users, keyed by username. An entry is an
+ * immutable {@link Session} that is replaced as a whole, so readers always
+ * see a connection together with the address it registered. The directory
+ * also holds the {@link SessionTickets} sessions are resumed with.
+ */
+public class SessionDirectory {
+
+	private ConcurrentHashMap<String, Session> sessions;
+	private Collection<TCPConnection> connections;
+	private SessionTickets tickets;
+
+	public SessionDirectory(SessionTickets tickets) {
+		this.sessions = new ConcurrentHashMap<>();
+		this.connections = Collections.unmodifiableCollection(new ConnectionView());
+		this.tickets = tickets;
+	}
+
+	public SessionTickets tickets() {
+		return tickets;
+	}
+
+	/**
+	 * Records that the user logged in on the given connection.
+	 */
+	public void open(String username, TCPConnection connection) {
+		sessions.put(username, new Session(connection, null, null));
+	}
+
+	/**
+	 * Records the private address the user registered on the given
+	 * connection.
+	 *
+	 * @return false if the connection no longer holds the user's session
+	 */
+	public boolean register(String username, TCPConnection connection, String ipPort,
+			INameserverForChatserver nameserver) {
+		Session registered = new Session(connection, ipPort, nameserver);
+		return sessions.computeIfPresent(username,
+				(name, session) -> session.connection == connection ? registered : session)
+				== registered;
+	}
+
+	/**
+	 * Removes the user's session if it is still the one of the given
+	 * connection.
+	 */
+	public void close(String username, TCPConnection connection) {
+		sessions.computeIfPresent(username,
+				(name, session) -> session.connection == connection ? null : session);
+	}
+
+	/**
+	 * @return the session of the user, or null if the user is not logged in
+	 */
+	public Session get(String username) {
+		return sessions.get(username);
+	}
+
+	/**
+	 * @return the connections of all logged in users; a live view
+	 */
+	public Collection<TCPConnection> connections() {
+		return connections;
+	}
+
+	/**
+	 * @return the number of logged in users
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Maps the session values to their connections without copying.
+	 */
+	private class ConnectionView extends AbstractCollection<TCPConnection> {
+		@Override
+		public Iterator<TCPConnection> iterator() {
+			Iterator<Session> values = sessions.values().iterator();
+			return new Iterator<TCPConnection>() {
+				@Override
+				public boolean hasNext() {
+					return values.hasNext();
+				}
+
+				@Override
+				public TCPConnection next() {
+					return values.next().connection;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return sessions.size();
+		}
+	}
+
+	/**
+	 * A logged in user's connection and, once registered, its private address
+	 * and the nameserver it was registered with.
+	 */
+	public static class Session {
+		private TCPConnection connection;
+		private String ipPort;
+		private INameserverForChatserver nameserver;
+
+		private Session(TCPConnection connection, String ipPort,
+				INameserverForChatserver nameserver) {
+			this.connection = connection;
+			this.ipPort = ipPort;
+			this.nameserver = nameserver;
+		}
+
+		public TCPConnection getConnection() {
+			return connection;
+		}
+
+		public String getIpPort() {
+			return ipPort;
+		}
+
+		public INameserverForChatserver getNameserver() {
+			return nameserver;
+		}
+
+		public boolean isRegistered() {
+			return ipPort != null && nameserver != null;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package chatserver.tcp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import crypto.Resumption;
+
+import util.Config;
+
+/**
+ * Issues and redeems session tickets, so a client that authenticated once can
+ * resume within {@code ticket.lifetime} seconds without another RSA
+ * handshake. A ticket is the username, a resumption secret and an expiry,
+ * sealed with AES/GCM under a ticket key only the server knows; the server
+ * keeps no state per ticket apart from the ids of redeemed ones, which makes
+ * every ticket usable once.
+ * <p/>
+ * The ticket key is replaced every {@code ticket.rotation} seconds; older
+ * keys are kept until no ticket sealed with them can still be valid.
+ */
+public class SessionTickets {
+
+	private static final long DEFAULT_LIFETIME = 3600;
+	private static final long DEFAULT_ROTATION = 600;
+	private static final int SECRET_LENGTH = 32;
+	private static final int ID_LENGTH = 16;
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_BITS = 128;
+
+	private long lifetime;
+	private long rotation;
+	private SecureRandom random;
+	private KeyGenerator keyGenerator;
+	private volatile TicketKey current;
+	private Map<Integer, TicketKey> keys;
+	private Map<ByteBuffer, Long> redeemed;
+	private AtomicLong issued;
+	private AtomicLong resumed;
+	private AtomicLong rejected;
+
+	/**
+	 * Reads the optional {@code ticket.lifetime} and {@code ticket.rotation}
+	 * from the given configuration. A lifetime of 0 disables tickets.
+	 */
+	public SessionTickets(Config config) {
+		this.lifetime = 1000 * (config.listKeys().contains("ticket.lifetime")
+				? config.getInt("ticket.lifetime") : DEFAULT_LIFETIME);
+		this.rotation = 1000 * (config.listKeys().contains("ticket.rotation")
+				? config.getInt("ticket.rotation") : DEFAULT_ROTATION);
+		this.random = new SecureRandom();
+		try {
+			this.keyGenerator = KeyGenerator.getInstance("AES");
+			keyGenerator.init(256);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Cannot create ticket keys.", e);
+		}
+		this.keys = new ConcurrentHashMap<>();
+		this.redeemed = new ConcurrentHashMap<>();
+		this.issued = new AtomicLong();
+		this.resumed = new AtomicLong();
+		this.rejected = new AtomicLong();
+		this.current = new TicketKey(0, keyGenerator.generateKey(), System.currentTimeMillis());
+		keys.put(0, current);
+	}
+
+	public boolean isEnabled() {
+		return lifetime > 0;
+	}
+
+	/**
+	 * @return the lifetime of new tickets in seconds
+	 */
+	public long getLifetime() {
+		return lifetime / 1000;
+	}
+
+	/**
+	 * Creates a ticket for the user with a new resumption secret.
+	 *
+	 * @return the ticket, or null if tickets are disabled
+	 */
+	public Ticket issue(String username) {
+		if (!isEnabled()) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		TicketKey key = rotateIfDue(now);
+		byte[] secret = new byte[SECRET_LENGTH];
+		byte[] id = new byte[ID_LENGTH];
+		byte[] nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(secret);
+		random.nextBytes(id);
+		random.nextBytes(nonce);
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer plain = ByteBuffer.allocate(8 + ID_LENGTH + SECRET_LENGTH + name.length);
+		plain.putLong(now + lifetime).put(id).put(secret).put(name).flip();
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key.key, new GCMParameterSpec(TAG_BITS, nonce));
+			ByteBuffer sealed = ByteBuffer
+					.allocate(4 + NONCE_LENGTH + cipher.getOutputSize(plain.remaining()));
+			sealed.putInt(key.id).put(nonce);
+			cipher.doFinal(plain, sealed);
+			issued.incrementAndGet();
+			return new Ticket(username, secret,
+					Base64.getEncoder().encodeToString(sealed.array()));
+		} catch (GeneralSecurityException e) {
+			System.err.println("Cannot issue session ticket: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a ticket and, if the client proved it knows the ticket's secret,
+	 * marks it as used. A ticket seen on the wire can therefore not be used
+	 * up by someone who lacks the secret.
+	 *
+	 * @param clientNonce
+	 *            the client's nonce the proof was computed over
+	 * @param proof
+	 *            see {@link Resumption#proof(byte[], byte[])}
+	 * @return the username and secret of the ticket, or null if it is
+	 *         invalid, expired, was redeemed before or the proof is wrong
+	 */
+	public Ticket redeem(String encoded, byte[] clientNonce, byte[] proof) {
+		if (!isEnabled()) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		try {
+			ByteBuffer sealed = ByteBuffer.wrap(Base64.getDecoder().decode(encoded));
+			TicketKey key = keys.get(sealed.getInt());
+			if (key == null) {
+				rejected.incrementAndGet();
+				return null;
+			}
+			byte[] nonce = new byte[NONCE_LENGTH];
+			sealed.get(nonce);
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key.key, new GCMParameterSpec(TAG_BITS, nonce));
+			ByteBuffer plain = ByteBuffer.allocate(cipher.getOutputSize(sealed.remaining()));
+			cipher.doFinal(sealed, plain);
+			plain.flip();
+
+			long expiry = plain.getLong();
+			byte[] id = new byte[ID_LENGTH];
+			byte[] secret = new byte[SECRET_LENGTH];
+			plain.get(id).get(secret);
+			String username = StandardCharsets.UTF_8.decode(plain).toString();
+			if (expiry < now
+					|| !MessageDigest.isEqual(Resumption.proof(secret, clientNonce), proof)
+					|| redeemed.putIfAbsent(ByteBuffer.wrap(id), expiry) != null) {
+				rejected.incrementAndGet();
+				return null;
+			}
+			resumed.incrementAndGet();
+			return new Ticket(username, secret, encoded);
+		} catch (GeneralSecurityException | IllegalArgumentException
+				| BufferUnderflowException e) {
+			rejected.incrementAndGet();
+			return null;
+		}
+	}
+
+	private synchronized TicketKey rotateIfDue(long now) {
+		if (now - current.createdAt < rotation) {
+			return current;
+		}
+		current = new TicketKey(current.id + 1, keyGenerator.generateKey(), now);
+		keys.put(current.id, current);
+		// a key can be dropped once every ticket it sealed has expired
+		keys.values().removeIf(key -> key != current && now - key.createdAt > rotation + lifetime);
+		redeemed.values().removeIf(expiry -> expiry < now);
+		return current;
+	}
+
+	/**
+	 * @return issued, resumed and rejected tickets
+	 */
+	public String stats() {
+		return "Session tickets: " + issued.get() + " issued, " + resumed.get() + " resumed, "
+				+ rejected.get() + " rejected";
+	}
+
+	/**
+	 * An issued or redeemed ticket.
+	 */
+	public static class Ticket {
+		private String username;
+		private byte[] secret;
+		private String encoded;
+
+		private Ticket(String username, byte[] secret, String encoded) {
+			this.username = username;
+			this.secret = secret;
+			this.encoded = encoded;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public byte[] getSecret() {
+			return secret;
+		}
+
+		/**
+		 * @return the sealed ticket as sent to the client
+		 */
+		public String getEncoded() {
+			return encoded;
+		}
+	}
+
+	private static class TicketKey {
+		private int id;
+		private SecretKey key;
+		private long createdAt;
+
+		private TicketKey(int id, SecretKey key, long createdAt) {
+			this.id = id;
+			this.key = key;
+			this.createdAt = createdAt;
+		}
+	}
+}
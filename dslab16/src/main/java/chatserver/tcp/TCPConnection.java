@@ -1,142 +1,266 @@
 package chatserver.tcp;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.SocketException;
-import java.rmi.NotBoundException;
-import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import org.bouncycastle.util.encoders.Base64;
 import channels.AESChannel;
+import channels.AbstractChannel;
 import channels.Channel;
+import channels.Frame;
+import channels.RSAChannel;
+import chatserver.broadcast.Broadcaster;
+import chatserver.broadcast.OutboundQueue;
+import chatserver.broadcast.PresenceFeed;
+import chatserver.naming.NameserverClient;
+import crypto.Resumption;
 import model.User;
-import nameserver.INameserverForChatserver;
-import nameserver.exceptions.AlreadyRegisteredException;
-import nameserver.exceptions.InvalidDomainException;
-import util.Config;
-import util.Keys;
+import model.UserRegistry;
+import util.OpcodeRegistry;
+import util.PublicKeyStore;
 
 public class TCPConnection extends Thread {
 
-	private Channel tcpChannel;
+	/**
+	 * Requests the chatserver understands, keyed by opcode. Further commands
+	 * can be registered without touching the request loop.
+	 */
+	public static final OpcodeRegistry<TCPConnection> COMMANDS = new OpcodeRegistry<>(
+			"Requests", (conn, request, args) -> conn.tcpChannel.send("Error: Unknown request."));
+
+	/**
+	 * Requests accepted without encryption, before a session is established.
+	 */
+	private static final Set<String> CLEARTEXT = Set.of("!resume", "!exit");
+
+	static {
+		COMMANDS.register("!login",
+				(conn, request, args) -> conn.tcpChannel.send(conn.login(request)));
+		COMMANDS.register("!logout", (conn, request, args) -> conn.tcpChannel.send(conn.logout()));
+		COMMANDS.register("!send", (conn, request, args) -> conn.send(request));
+		COMMANDS.register("!register", (conn, request, args) -> conn.register(request));
+		COMMANDS.register("!lookup", (conn, request, args) -> conn.lookup(request));
+		COMMANDS.register("!authenticate", (conn, request, args) -> conn.authenticate(request));
+		COMMANDS.register("!resume", (conn, request, args) -> conn.resume(request));
+		COMMANDS.register("!subscribe", (conn, request, args) -> conn.subscribe());
+		COMMANDS.register("!unsubscribe", (conn, request, args) -> conn.unsubscribe());
+		COMMANDS.register("!exit", (conn, request, args) -> conn.exit());
+	}
+
+	private volatile Channel tcpChannel;
 	private Channel rsaChannel;
-	private Channel aesChannel;
-	private List<TCPConnection> allConnections;
-	private Map<String, User> userMap;
+	private volatile Channel aesChannel;
+	private Set<TCPConnection> allConnections;
+	private UserRegistry users;
+	private SessionDirectory sessions;
 	private User user;
-	private String ipPort;
-	private Config config;
 	private PrintStream userResponseStream;
-	private INameserverForChatserver nameserver;
+	private Broadcaster broadcaster;
+	private PresenceFeed presence;
+	private PublicKeyStore publicKeys;
+	private HandshakePool handshakes;
+	private NameserverClient nameservers;
+	// the session channel of a registration waiting for the nameserver
+	private volatile Channel registering;
+	private volatile boolean handshaking;
+	private Runnable handshakeDone;
+	private OutboundQueue outboundQueue;
+	private volatile long groupEpoch;
+	private String pendingUsername;
+	private String pendingChallenge;
 
-	public TCPConnection(Channel tcpChannel, List<TCPConnection> allConnections,
-			Map<String, User> userMap, PrintStream userResponseStream) {
+	public TCPConnection(Channel tcpChannel, Set<TCPConnection> allConnections,
+			UserRegistry users, SessionDirectory sessions, Broadcaster broadcaster,
+			PresenceFeed presence, PublicKeyStore publicKeys, HandshakePool handshakes,
+			NameserverClient nameservers, PrintStream userResponseStream) {
 		this.tcpChannel = tcpChannel;
 		this.rsaChannel = tcpChannel;
 		this.allConnections = allConnections;
-		this.userMap = userMap;
+		this.users = users;
+		this.sessions = sessions;
 		this.userResponseStream = userResponseStream;
 		this.user = null;
-		this.ipPort = null;
-		this.config = new Config("chatserver");
-		this.nameserver = null;
+		this.broadcaster = broadcaster;
+		this.presence = presence;
+		this.publicKeys = publicKeys;
+		this.handshakes = handshakes;
+		this.nameservers = nameservers;
+		this.outboundQueue = broadcaster.newQueue(this);
+		this.groupEpoch = -1;
 	}
 
 	public Channel getTcpChannel() {
 		return tcpChannel;
 	}
 
+	/**
+	 * @return the AES channel of the logged in user's session, or null if no
+	 *         user is logged in
+	 */
+	public Channel getSessionChannel() {
+		Channel channel = aesChannel;
+		return user != null ? channel : null;
+	}
+
 	public User getUser() {
 		return user;
 	}
 
-	public String getIpPort() {
-		return ipPort;
+	public OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+
+	/**
+	 * @return the epoch of the last group key handed to the client, -1 if none
+	 */
+	public long getGroupEpoch() {
+		return groupEpoch;
 	}
 
-	public INameserverForChatserver getNameserver() {
-		return nameserver;
+	public void setGroupEpoch(long groupEpoch) {
+		this.groupEpoch = groupEpoch;
 	}
 
 	@Override
 	public void run() {
 		try {
-			String request;
-			while (!tcpChannel.getSocket().isClosed()
-					&& (request = new String(tcpChannel.recvByte())) != null) {
-				if (request.startsWith("!login")) {
-					tcpChannel.send(login(request));
-				} else if (request.startsWith("!logout")) {
-					tcpChannel.send(logout());
-				} else if (request.startsWith("!send")) {
-					send(request);
-				} else if (request.startsWith("!register")) {
-					tcpChannel.send(register(request));
-				} else if (request.startsWith("!lookup")) {
-					tcpChannel.send(lookup(request));
-				} else if (request.startsWith("!authenticate")) {
-					authenticate(request);
-				} else if (request.startsWith("!exit")) {
-					exit();
-				} else {
-					tcpChannel.send("Error: Unknown request.");
-				}
+			while (!tcpChannel.getSocket().isClosed()) {
+				handleRequest();
 			}
 		} catch (SocketException e) {
 		} catch (NullPointerException e) {
 		} catch (IOException e) {
 			System.err.println("Error occurred while communicating with client: " + e.getMessage());
+		} catch (RuntimeException e) {
+			System.err.println("Error occurred while handling client request: " + e);
 		}
 		logout();
 		exit();
 	}
 
-	public String login(String request) {
-		synchronized (userMap) {
-			String[] parts = request.split("\\s");
-			if (userMap.containsKey(parts[1])) {
-				if (userMap.get(parts[1]).getPassword().equals(parts[2])) {
-					if (!userMap.get(parts[1]).isLoggedIn()) {
-						if (this.user != null) {
-							return "!login" + "Already logged in with another account.";
-						} else {
-							this.user = userMap.get(parts[1]);
-							this.user.setLoggedIn(true);
-							return "!login" + "Successfully logged in.";
-						}
-					} else {
-						return "!login" + "Already logged in.";
-					}
-				} else {
-					return "!login" + "Wrong username or password.";
-				}
+	/**
+	 * Reads the next request from the channel and dispatches it. On the
+	 * thread-per-connection path this blocks until a request arrives, the NIO
+	 * reactor only calls it once a complete request has been buffered.
+	 * <p/>
+	 * RSA encrypted requests, i.e. handshakes, are handed to the
+	 * {@link HandshakePool}. Without a completion callback this waits for
+	 * the handshake; with one it returns at once and no further request may
+	 * be handled until the callback has run.
+	 */
+	public void handleRequest() throws IOException {
+		if (aesChannel == null && rsaChannel instanceof RSAChannel) {
+			Frame frame = rsaChannel.getDecoratedChannel().recvFrame();
+			if (frame == null) {
+				throw new SocketException("Connection closed by client.");
+			}
+			if (frame.getOpcode() == Frame.DATA) {
+				handshake((RSAChannel) rsaChannel, frame.getPayload());
+				return;
+			}
+			String request = new String(AbstractChannel.toArray(frame.getPayload()));
+			if (CLEARTEXT.contains(request.split("\\s", 2)[0])) {
+				COMMANDS.dispatch(this, request);
 			} else {
-				return "!login" + "Wrong username or password.";
+				rsaChannel.getDecoratedChannel()
+						.send("Error: Request must be encrypted, authenticate first.");
+			}
+			return;
+		}
+		String request = new String(tcpChannel.recvByte());
+		if (pendingChallenge != null) {
+			verifyChallenge(request);
+		} else {
+			COMMANDS.dispatch(this, request);
+		}
+	}
+
+	private void handshake(RSAChannel rsa, ByteBuffer payload) throws IOException {
+		handshaking = true;
+		Future<?> step = handshakes.submit(() -> {
+			try {
+				COMMANDS.dispatch(this, new String(AbstractChannel.toArray(rsa.decrypt(payload))));
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Error occurred during handshake: " + e.getMessage());
+			} finally {
+				handshaking = false;
+				if (handshakeDone != null) {
+					handshakeDone.run();
+				}
+			}
+		});
+		if (step == null) {
+			handshaking = false;
+			rsa.getDecoratedChannel().send("!busy Server busy, try again later.");
+			return;
+		}
+		if (handshakeDone == null) {
+			try {
+				step.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SocketException("Interrupted during handshake.");
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
 			}
 		}
 	}
 
+	/**
+	 * @return whether a handshake of this connection is in progress on the
+	 *         {@link HandshakePool}
+	 */
+	public boolean isHandshaking() {
+		return handshaking;
+	}
+
+	/**
+	 * Makes handshakes asynchronous: {@link #handleRequest()} no longer waits
+	 * for them, the callback is run on the worker once a handshake is done.
+	 */
+	public void setHandshakeCallback(Runnable handshakeDone) {
+		this.handshakeDone = handshakeDone;
+	}
+
+	public String login(String request) {
+		String[] parts = request.split("\\s");
+		User candidate = users.get(parts[1]);
+		if (candidate == null || !candidate.getPassword().equals(parts[2])) {
+			return "!login" + "Wrong username or password.";
+		}
+		if (candidate.isLoggedIn()) {
+			return "!login" + "Already logged in.";
+		}
+		if (this.user != null) {
+			return "!login" + "Already logged in with another account.";
+		}
+		if (!users.login(candidate)) {
+			return "!login" + "Already logged in.";
+		}
+		this.user = candidate;
+		sessions.open(candidate.getName(), this);
+		return "!login" + "Successfully logged in.";
+	}
+
 	public String logout() {
 		if (user == null) {
 			return "!logout" + "Not logged in.";
 		}
-		synchronized (userMap) {
-			user.setLoggedIn(false);
-			user = null;
-		}
-		ipPort = null;
-		nameserver = null;
+		presence.unsubscribe(this);
+		sessions.close(user.getName(), this);
+		users.logout(user);
+		user = null;
+		groupEpoch = -1;
 		tcpChannel = rsaChannel;
 		aesChannel = null;
 		return "!logout" + "Successfully logged out.";
@@ -147,91 +271,109 @@ public class TCPConnection extends Thread {
 			tcpChannel.send("!failedpublic" + "Not logged in.");
 			return;
 		}
-		synchronized (allConnections) {
-			for (TCPConnection conn : allConnections) {
-				if (conn.getUser() != null) {
-					if (!(conn.getTcpChannel().getDecoratedChannel()
-							.equals(tcpChannel.getDecoratedChannel()))) {
-						conn.getTcpChannel()
-								.send("!public" + user.getName() + ": " + request.substring(6));
-					} else {
-						tcpChannel.send("!successpublic" + "Public message successfully sent.");
-					}
-				}
-			}
-		}
+		broadcaster.broadcast(this, "!public" + user.getName() + ": " + request.substring(6),
+				sessions.connections());
+		tcpChannel.send("!successpublic" + "Public message successfully sent.");
 	}
 
-	public String register(String ipPort) {
+	/**
+	 * Subscribes to presence updates; the snapshot arrives asynchronously.
+	 */
+	public void subscribe() {
 		if (user == null) {
-			return "!register" + "Not logged in.";
-		}
-		if (this.ipPort != null || this.nameserver != null) {
-			return "!register" + "Already registered and waiting for private messages.";
-		}
-		if (ipPort.length() == 9) {
-			this.ipPort = null;
-			return "!register" + "No <IP:port> specified";
+			tcpChannel.send("!presence" + "Not logged in.");
+			return;
 		}
+		presence.subscribe(this);
+	}
 
-		try {
-			Registry reg = LocateRegistry.getRegistry(config.getString("registry.host"),
-					config.getInt("registry.port"));
-			this.nameserver = (INameserverForChatserver) reg.lookup(config.getString("root_id"));
-			this.ipPort = ipPort.substring(10);
-			this.nameserver.registerUser(user.getName(), this.ipPort);
-		} catch (RemoteException | NotBoundException | InvalidDomainException e) {
-			this.ipPort = null;
-			return "!register" + "Registration failed: " + e.getMessage();
-		} catch (AlreadyRegisteredException e) {
+	public void unsubscribe() {
+		if (user == null) {
+			tcpChannel.send("!presence" + "Not logged in.");
+		} else if (presence.unsubscribe(this)) {
+			tcpChannel.send("!presence" + "Unsubscribed from presence updates.");
+		} else {
+			tcpChannel.send("!presence" + "Not subscribed.");
 		}
-		return "!register" + "Successfully registered address for " + user.getName() + ".";
 	}
 
-	public String lookup(String request) {
+	/**
+	 * Registers the user's private address with the nameserver; the answer is
+	 * sent once the nameserver has replied, unless the session has ended by
+	 * then.
+	 */
+	public void register(String ipPort) {
+		Channel channel = tcpChannel;
 		if (user == null) {
-			return "!lookup" + "Not logged in. -OR- Wrong username or user not registered.";
+			channel.send("!register" + "Not logged in.");
+			return;
+		}
+		SessionDirectory.Session session = sessions.get(user.getName());
+		if (session != null && session.isRegistered()) {
+			channel.send("!register" + "Already registered and waiting for private messages.");
+			return;
+		}
+		if (registering == channel) {
+			channel.send("!register" + "Registration already in progress.");
+			return;
+		}
+		if (ipPort.length() == 9) {
+			channel.send("!register" + "No <IP:port> specified");
+			return;
 		}
 
-		String addr = "";
-		try {
-			String username = request.substring(8);
-			int lastIndex = username.lastIndexOf(".");
-			INameserverForChatserver ns = null;
-			synchronized (allConnections) {
-				for (TCPConnection conn : allConnections) {
-					if (conn.getUser() != null) {
-						if (conn.getUser().getName().equals(username)) {
-							if (conn.getNameserver() == null || conn.getIpPort() == null) {
-								return "!lookup" + "Wrong username or user not registered.";
-							}
-							ns = conn.getNameserver();
-						}
-					}
-				}
+		String username = user.getName();
+		String address = ipPort.substring(10);
+		registering = channel;
+		nameservers.register(username, address).whenComplete((nameserver, error) -> {
+			if (registering == channel) {
+				registering = null;
 			}
-			if (ns == null) {
-				return "!lookup" + "Wrong username or user not registered.";
+			if (tcpChannel != channel) {
+				// logged out meanwhile, the client no longer expects an answer
+				return;
 			}
-			while (lastIndex != -1) {
-				String zone = username.substring(lastIndex + 1);
-				username = username.substring(0, lastIndex);
-				ns = ns.getNameserver(zone);
-				if (ns == null) {
-					throw new InvalidDomainException("Zone \'" + zone + "\' does not exist!");
-				} else {
-					lastIndex = username.lastIndexOf(".");
-				}
+			if (error != null) {
+				channel.send("!register" + "Registration failed: "
+						+ NameserverClient.reason(error));
+			} else if (!sessions.register(username, this, address, nameserver)) {
+				channel.send("!register" + "Registration failed: Not logged in.");
+			} else {
+				channel.send("!register" + "Successfully registered address for " + username
+						+ ".");
 			}
-			addr = ns.lookup(username);
-		} catch (RemoteException | InvalidDomainException e) {
-			return "!lookup" + "Error: " + e.getMessage();
+		});
+	}
+
+	/**
+	 * Looks up a user's private address; the answer is sent once it has been
+	 * resolved, unless the session has ended by then.
+	 */
+	public void lookup(String request) {
+		Channel channel = tcpChannel;
+		if (user == null) {
+			channel.send("!lookup" + "Not logged in. -OR- Wrong username or user not registered.");
+			return;
 		}
-		if (addr == null) {
-			return "!lookup" + "Wrong username or user not registered.";
-		} else {
-			return "!lookup" + addr;
+
+		String username = request.substring(8);
+		SessionDirectory.Session session = sessions.get(username);
+		if (session == null || !session.isRegistered()) {
+			channel.send("!lookup" + "Wrong username or user not registered.");
+			return;
 		}
+		nameservers.lookup(username).whenComplete((addr, error) -> {
+			if (tcpChannel != channel) {
+				return;
+			}
+			if (error != null) {
+				channel.send("!lookup" + "Error: " + NameserverClient.reason(error));
+			} else if (addr == null) {
+				channel.send("!lookup" + "Wrong username or user not registered.");
+			} else {
+				channel.send("!lookup" + addr);
+			}
+		});
 	}
 
 	private void authenticate(String firstMessage) {
@@ -263,11 +405,8 @@ public class TCPConnection extends Thread {
 					+ " " + new String(encodedSecretKey) + " " + new String(encodedIvParameter);
 			// System.out.println("finishedsecondmessage: " + secondMessage);
 
-			String clientPublicKeyPath = config.getString("keys.dir") + "/" + username + ".pub.pem";
-			PublicKey clientPublicKey;
-			try {
-				clientPublicKey = Keys.readPublicPEM(new File(clientPublicKeyPath));
-			} catch (FileNotFoundException e) {
+			PublicKey clientPublicKey = publicKeys.get(username);
+			if (clientPublicKey == null) {
 				userResponseStream.println("There exists no public key for the specified user.");
 				return;
 			}
@@ -276,48 +415,125 @@ public class TCPConnection extends Thread {
 
 			// AES channel
 			aesChannel = new AESChannel(tcpChannel.getDecoratedChannel(), ivParameter,
-					secretKey.getEncoded());
+					secretKey.getEncoded(), false);
 			tcpChannel = aesChannel;
-			byte[] thirdMessage = tcpChannel.recvByte();
-
-			// check server challenges
-			// System.out.println("decryptedThirdMessage: " + new
-			// String(thirdMessage));
-			if (!new String(thirdMessage).equals(new String(encodedChatserverChallenge))) {
-				userResponseStream
-						.println("Server-challenges do not match. Closing the TCP connection.");
-				tcpChannel = rsaChannel;
-				aesChannel = null;
-				logout();
-				exit();
-				return;
-			}
-			synchronized (userMap) {
-				if (userMap.containsKey(username)) {
-					if (!userMap.get(parts[1]).isLoggedIn()) {
-						this.user = userMap.get(parts[1]);
-						this.user.setLoggedIn(true);
-						userResponseStream.println("Client connected successfully");
-					} else {
-						userResponseStream.println(
-								"User is already logged in on another client. Closing the TCP connection.");
-						tcpChannel = rsaChannel;
-						aesChannel = null;
-						logout();
-						exit();
-					}
-				} else {
-					userResponseStream.println("Wrong username.");
-					tcpChannel = rsaChannel;
-					aesChannel = null;
-					logout();
-					exit();
-				}
-			}
+
+			// the third message is verified by the next handleRequest() call
+			pendingUsername = username;
+			pendingChallenge = new String(encodedChatserverChallenge);
 		} catch (NoSuchAlgorithmException e) {
 			System.err.println(e.getMessage());
+		}
+	}
+
+	private void verifyChallenge(String thirdMessage) {
+		String username = pendingUsername;
+		String chatserverChallenge = pendingChallenge;
+		pendingUsername = null;
+		pendingChallenge = null;
+
+		// check server challenges
+		if (!thirdMessage.equals(chatserverChallenge)) {
+			userResponseStream.println("Server-challenges do not match. Closing the TCP connection.");
+			tcpChannel = rsaChannel;
+			aesChannel = null;
+			logout();
+			exit();
+			return;
+		}
+		User candidate = users.get(username);
+		if (candidate == null) {
+			userResponseStream.println("Wrong username.");
+			tcpChannel = rsaChannel;
+			aesChannel = null;
+			logout();
+			exit();
+		} else if (users.login(candidate)) {
+			broadcaster.welcome(this);
+			this.user = candidate;
+			sessions.open(candidate.getName(), this);
+			issueTicket();
+			userResponseStream.println("Client connected successfully");
+		} else {
+			userResponseStream.println(
+					"User is already logged in on another client. Closing the TCP connection.");
+			tcpChannel = rsaChannel;
+			aesChannel = null;
+			logout();
+			exit();
+		}
+	}
+
+	/**
+	 * Resumes an authenticated session from a ticket without RSA: the client
+	 * proves it knows the ticket's secret, both sides derive a new AES key
+	 * from it and their nonces, and the session continues on that key. The
+	 * request and the reply are sent in the clear.
+	 */
+	private void resume(String request) {
+		Channel transport = rsaChannel.getDecoratedChannel();
+		String[] parts = request.split("\\s");
+		if (user != null || aesChannel != null || parts.length != 4) {
+			transport.send("!resumefailed Not possible in this state.");
+			return;
+		}
+		SessionTickets.Ticket ticket;
+		byte[] clientNonce;
+		try {
+			clientNonce = Base64.decode(parts[2].getBytes());
+			ticket = sessions.tickets().redeem(parts[1], clientNonce,
+					Base64.decode(parts[3].getBytes()));
+		} catch (RuntimeException e) {
+			ticket = null;
+			clientNonce = null;
+		}
+		if (ticket == null) {
+			transport.send("!resumefailed Invalid or expired ticket.");
+			return;
+		}
+		User candidate = users.get(ticket.getUsername());
+		if (candidate == null || !users.login(candidate)) {
+			transport.send("!resumefailed User is already logged in on another client.");
+			return;
+		}
+
+		byte[] serverNonce = new byte[Resumption.NONCE_LENGTH];
+		new SecureRandom().nextBytes(serverNonce);
+		transport.send("!resumed " + new String(Base64.encode(serverNonce)));
+		aesChannel = new AESChannel(transport,
+				Resumption.iv(ticket.getSecret(), clientNonce, serverNonce),
+				Resumption.sessionKey(ticket.getSecret(), clientNonce, serverNonce), false);
+		tcpChannel = aesChannel;
+
+		broadcaster.welcome(this);
+		this.user = candidate;
+		sessions.open(candidate.getName(), this);
+		issueTicket();
+		userResponseStream.println("Client resumed session successfully");
+	}
+
+	/**
+	 * Hands the client a ticket to resume this session with later.
+	 */
+	private void issueTicket() {
+		SessionTickets.Ticket ticket = sessions.tickets().issue(user.getName());
+		if (ticket != null) {
+			tcpChannel.send("!ticket " + ticket.getEncoded() + " "
+					+ new String(Base64.encode(ticket.getSecret())) + " "
+					+ sessions.tickets().getLifetime());
+		}
+	}
+
+	/**
+	 * Shuts down the input side of the connection from another thread. The
+	 * connection's reader sees the end of the stream and logs the user out as
+	 * if the client had closed the connection.
+	 */
+	public void disconnect() {
+		try {
+			tcpChannel.getSocket().shutdownInput();
 		} catch (IOException e) {
-			System.err.println(e.getMessage());
+			System.err.println("Error occurred while disconnecting client: " + e.getMessage());
 		}
 	}
 
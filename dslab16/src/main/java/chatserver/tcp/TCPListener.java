@@ -7,18 +7,20 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.security.Key;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
 import channels.Channel;
+import chatserver.broadcast.Broadcaster;
+import chatserver.broadcast.PresenceFeed;
+import chatserver.naming.NameserverClient;
 import channels.RSAChannel;
 import channels.TCPChannel;
-import model.User;
+import model.UserRegistry;
 import util.Config;
 import util.Keys;
+import util.PublicKeyStore;
 
 /**
  * Thread to listen for incoming connections on the given socket.
@@ -27,17 +29,31 @@ public class TCPListener extends Thread {
 
 	private ServerSocket serverSocket;
 	private ExecutorService pool;
-	private Map<String, User> userMap;
-	private List<TCPConnection> allConnections;
+	private UserRegistry users;
+	private SessionDirectory sessions;
+	private Broadcaster broadcaster;
+	private PresenceFeed presence;
+	private PublicKeyStore publicKeys;
+	private HandshakePool handshakes;
+	private NameserverClient nameservers;
+	private Set<TCPConnection> allConnections;
 	private PrintStream userResponseStream;
 	private Key chatserverPrivateKey;
 
-	public TCPListener(ServerSocket serverSocket, ExecutorService pool, Map<String, User> userMap,
+	public TCPListener(ServerSocket serverSocket, ExecutorService pool, UserRegistry users,
+			SessionDirectory sessions, Broadcaster broadcaster, PresenceFeed presence,
+			PublicKeyStore publicKeys, HandshakePool handshakes, NameserverClient nameservers,
 			PrintStream userResponseStream) {
 		this.serverSocket = serverSocket;
 		this.pool = pool;
-		this.userMap = userMap;
-		this.allConnections = Collections.synchronizedList(new ArrayList<TCPConnection>());
+		this.users = users;
+		this.sessions = sessions;
+		this.broadcaster = broadcaster;
+		this.presence = presence;
+		this.publicKeys = publicKeys;
+		this.handshakes = handshakes;
+		this.nameservers = nameservers;
+		this.allConnections = ConcurrentHashMap.newKeySet();
 		this.userResponseStream = userResponseStream;
 
 		try {
@@ -55,19 +71,19 @@ public class TCPListener extends Thread {
 			try {
 				socket = serverSocket.accept();
 
-				Channel tcpChannel = new RSAChannel(new TCPChannel(socket), chatserverPrivateKey);
-				TCPConnection tcpConn = new TCPConnection(tcpChannel, allConnections, userMap,
+				Channel tcpChannel = new RSAChannel(new TCPChannel(socket, true),
+						chatserverPrivateKey);
+				TCPConnection tcpConn = new TCPConnection(tcpChannel, allConnections, users,
+						sessions, broadcaster, presence, publicKeys, handshakes, nameservers,
 						userResponseStream);
 				allConnections.add(tcpConn);
 				pool.execute(tcpConn);
 
 			} catch (SocketException e) {
 				try {
-					synchronized (allConnections) {
-						for (TCPConnection conn : allConnections) {
-							if (conn.getTcpChannel() != null) {
-								conn.getTcpChannel().close();
-							}
+					for (TCPConnection conn : allConnections) {
+						if (conn.getTcpChannel() != null) {
+							conn.getTcpChannel().close();
 						}
 					}
 				} catch (IOException e1) {
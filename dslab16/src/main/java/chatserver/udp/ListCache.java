@@ -0,0 +1,64 @@
+package chatserver.udp;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import model.UserRegistry;
+import util.ListPages;
+
+/**
+ * The encoded answer to {@code !list}, rebuilt only when the set of online
+ * users has changed since it was last built. Every other request is answered
+ * with the cached pages as they are.
+ */
+public class ListCache {
+
+	private UserRegistry users;
+	private volatile Snapshot snapshot;
+	private LongAdder hits = new LongAdder();
+	private LongAdder rebuilds = new LongAdder();
+
+	public ListCache(UserRegistry users) {
+		this.users = users;
+		this.snapshot = new Snapshot(-1, null);
+	}
+
+	/**
+	 * @return the pages listing the online users, see {@link ListPages}; must
+	 *         not be modified
+	 */
+	public List<byte[]> get() {
+		// read the version before the set, so a change during the build leaves
+		// the snapshot looking outdated
+		long version = users.version();
+		Snapshot current = snapshot;
+		if (current.version == version) {
+			hits.increment();
+			return current.pages;
+		}
+		Snapshot rebuilt = new Snapshot(version, ListPages.paginate(version, users.online()));
+		if (snapshot.version < version) {
+			snapshot = rebuilt;
+		}
+		rebuilds.increment();
+		return rebuilt.pages;
+	}
+
+	/**
+	 * @return the cached version and how often it was served or rebuilt
+	 */
+	public String stats() {
+		return "List cache: version " + snapshot.version + ", " + hits.sum() + " hits, "
+				+ rebuilds.sum() + " rebuilds";
+	}
+
+	private static class Snapshot {
+		private long version;
+		private List<byte[]> pages;
+
+		private Snapshot(long version, List<byte[]> pages) {
+			this.version = version;
+			this.pages = pages;
+		}
+	}
+}
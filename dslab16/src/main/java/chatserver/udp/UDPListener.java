@@ -1,49 +1,225 @@
 package chatserver.udp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.util.Map;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
 
-import model.User;
+import util.BufferPool;
 
 /**
- * Thread to listen for incoming data packets on the given socket.
+ * Answers requests on the UDP port from non-blocking datagram channels, one
+ * selector loop per channel. A loop drains up to {@link #BATCH_SIZE}
+ * datagrams per wakeup and answers each of them right away, without handing
+ * it to another thread. Responses the socket cannot take immediately wait in
+ * a bounded backlog until it becomes writable; beyond that they are dropped
+ * and counted.
+ * <p/>
+ * With more than one socket, all of them are bound to the same port with
+ * SO_REUSEPORT, so the kernel spreads the clients over the loops.
  */
 public class UDPListener extends Thread {
 
-	private DatagramSocket datagramSocket;
+	private static final int PACKET_SIZE = 1024;
+	private static final int BATCH_SIZE = 64;
+	private static final int BACKLOG_LIMIT = 1024;
+	private static final byte[] LIST = "!list".getBytes();
+	private static final List<byte[]> UNKNOWN = Collections
+			.singletonList("Error: Unknown request.".getBytes());
+
 	private ExecutorService pool;
-	private Map<String, User> userMap;
+	private ListCache listCache;
+	private Loop[] loops;
+	private volatile boolean closed;
+
+	private LongAdder received = new LongAdder();
+	private LongAdder sent = new LongAdder();
+	private LongAdder dropped = new LongAdder();
+	private long lastStatsTime = System.nanoTime();
+	private long lastStatsReceived;
 
-	public UDPListener(DatagramSocket datagramSocket, ExecutorService pool,
-			Map<String, User> userMap) {
-		this.datagramSocket = datagramSocket;
+	/**
+	 * @param socketCount
+	 *            number of sockets and loops sharing the port; falls back to
+	 *            one if the platform does not support SO_REUSEPORT
+	 */
+	public UDPListener(int port, int socketCount, ExecutorService pool, ListCache listCache)
+			throws IOException {
 		this.pool = pool;
-		this.userMap = userMap;
+		this.listCache = listCache;
+
+		if (socketCount > 1) {
+			try (DatagramChannel probe = DatagramChannel.open()) {
+				if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					System.err.println("SO_REUSEPORT is not supported, using a single UDP socket.");
+					socketCount = 1;
+				}
+			}
+		}
+		this.loops = new Loop[socketCount];
+		for (int i = 0; i < socketCount; i++) {
+			DatagramChannel channel = DatagramChannel.open();
+			if (socketCount > 1) {
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			channel.bind(new InetSocketAddress(port));
+			channel.configureBlocking(false);
+			loops[i] = new Loop(channel);
+		}
 	}
 
 	public void run() {
+		for (int i = 1; i < loops.length; i++) {
+			pool.execute(loops[i]);
+		}
+		loops[0].run();
+	}
 
-		byte[] buffer;
-		DatagramPacket packet;
-		try {
-			while (true) {
-				buffer = new byte[1024];
-				packet = new DatagramPacket(buffer, buffer.length);
+	/**
+	 * Stops all loops and closes their sockets.
+	 */
+	public void close() {
+		closed = true;
+		for (Loop loop : loops) {
+			loop.close();
+		}
+	}
+
+	/**
+	 * @return datagrams received, responses sent and dropped, and the rate of
+	 *         received datagrams since the previous call
+	 */
+	public synchronized String stats() {
+		long now = System.nanoTime();
+		long receivedNow = received.sum();
+		double seconds = (now - lastStatsTime) / 1e9;
+		double rate = seconds > 0 ? (receivedNow - lastStatsReceived) / seconds : 0;
+		lastStatsTime = now;
+		lastStatsReceived = receivedNow;
+		return String.format("UDP (%d sockets): %d received, %d sent, %d dropped, %.1f packets/s",
+				loops.length, receivedNow, sent.sum(), dropped.sum(), rate);
+	}
 
-				datagramSocket.receive(packet);
-				UDPPacketTransfer udpTransfer = new UDPPacketTransfer(datagramSocket, packet,
-						buffer, userMap);
-				pool.execute(udpTransfer);
+	private List<byte[]> handle(ByteBuffer request) {
+		if (request.remaining() < LIST.length) {
+			return UNKNOWN;
+		}
+		for (int i = 0; i < LIST.length; i++) {
+			if (request.get(request.position() + i) != LIST[i]) {
+				return UNKNOWN;
 			}
+		}
+		return listCache.get();
+	}
+
+	/**
+	 * Selector loop of one datagram channel.
+	 */
+	private class Loop extends Thread {
 
-		} catch (SocketException e) {
-		} catch (IOException e) {
-			System.err.println("Error occurred while waiting for UDP packets: " + e.getMessage());
+		private DatagramChannel channel;
+		private Selector selector;
+		private Queue<Response> backlog = new ArrayDeque<>();
+
+		private Loop(DatagramChannel channel) throws IOException {
+			this.channel = channel;
+			this.selector = Selector.open();
 		}
 
+		public void run() {
+			ByteBuffer buffer = BufferPool.HEAP.acquire(PACKET_SIZE);
+			try {
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				while (!closed && !Thread.currentThread().isInterrupted()) {
+					selector.select();
+					selector.selectedKeys().clear();
+
+					if (key.isWritable()) {
+						flush();
+					}
+					if (key.isReadable()) {
+						drain(buffer);
+					}
+					key.interestOps(backlog.isEmpty() ? SelectionKey.OP_READ
+							: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (ClosedChannelException | ClosedSelectorException e) {
+			} catch (IOException e) {
+				if (!closed) {
+					System.err.println(
+							"Error occurred while waiting for UDP packets: " + e.getMessage());
+				}
+			} finally {
+				BufferPool.HEAP.release(buffer);
+				close();
+			}
+		}
+
+		private void drain(ByteBuffer buffer) throws IOException {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				buffer.clear().limit(PACKET_SIZE);
+				SocketAddress sender = channel.receive(buffer);
+				if (sender == null) {
+					return;
+				}
+				received.increment();
+				buffer.flip();
+				for (byte[] datagram : handle(buffer)) {
+					send(ByteBuffer.wrap(datagram), sender);
+				}
+			}
+		}
+
+		private void send(ByteBuffer datagram, SocketAddress target) throws IOException {
+			if (backlog.isEmpty() && channel.send(datagram, target) > 0) {
+				sent.increment();
+			} else if (backlog.size() < BACKLOG_LIMIT) {
+				backlog.add(new Response(datagram, target));
+			} else {
+				dropped.increment();
+			}
+		}
+
+		private void flush() throws IOException {
+			Response response;
+			while ((response = backlog.peek()) != null) {
+				if (channel.send(response.datagram, response.target) == 0) {
+					return;
+				}
+				backlog.poll();
+				sent.increment();
+			}
+		}
+
+		private void close() {
+			try {
+				channel.close();
+				selector.close();
+			} catch (IOException e) {
+				System.err.println("Error while closing UDP socket: " + e.getMessage());
+			}
+		}
+	}
+
+	private static class Response {
+		private ByteBuffer datagram;
+		private SocketAddress target;
+
+		private Response(ByteBuffer datagram, SocketAddress target) {
+			this.datagram = datagram;
+			this.target = target;
+		}
 	}
 }
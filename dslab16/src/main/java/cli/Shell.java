@@ -12,6 +12,8 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Reads commands from an {@link InputStream}, executes them and writes the
@@ -38,6 +40,7 @@ public class Shell implements Runnable, Closeable {
 	private OutputStream out;
 	private BufferedReader in;
 	private Closeable readMonitor;
+	private Lock readLock = new ReentrantLock();
 
 	/**
 	 * Creates a new {@code Shell} instance.
@@ -159,8 +162,11 @@ public class Shell implements Runnable, Closeable {
 	 *             if an I/O error occurs
 	 */
 	public String readLine() throws IOException {
-		synchronized (readMonitor) {
+		readLock.lock();
+		try {
 			return in.readLine();
+		} finally {
+			readLock.unlock();
 		}
 	}
 
@@ -181,11 +187,14 @@ public class Shell implements Runnable, Closeable {
 	 *             if an I/O error occurs
 	 */
 	public char[] read(int len) throws IOException {
-		synchronized (readMonitor) {
+		readLock.lock();
+		try {
 			len = len < 0 ? 4096 : len;
 			char[] cbuf = new char[len];
 			int read = in.read(cbuf, 0, len);
 			return read <= 0 ? EMPTY : Arrays.copyOfRange(cbuf, 0, read);
+		} finally {
+			readLock.unlock();
 		}
 	}
 
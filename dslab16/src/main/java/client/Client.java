@@ -16,9 +16,10 @@ import java.security.Key;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -31,13 +32,17 @@ import channels.RSAChannel;
 import channels.TCPChannel;
 import cli.Command;
 import cli.Shell;
+import client.tcp.SessionTicket;
 import client.tcp.TCPPrivateMessageListener;
 import client.tcp.TCPResponseReader;
 import client.udp.UDPResponseReader;
 import crypto.Cryptography;
 import crypto.Cryptography.HMAC_ALGORITHM;
+import crypto.Resumption;
 import util.Config;
+import util.ExecutionMode;
 import util.Keys;
+import util.ListPages;
 
 public class Client implements IClientCli, Runnable {
 
@@ -59,6 +64,7 @@ public class Client implements IClientCli, Runnable {
 	private BlockingQueue<String> listQueue;
 	private String username;
 	private StringBuilder lastMsg;
+	private Map<String, SessionTicket> tickets;
 	private ServerSocket privateServer;
 	private boolean loggedIn, registered;
 	private Key hmacKey;
@@ -82,7 +88,7 @@ public class Client implements IClientCli, Runnable {
 
 		shell = new Shell(componentName, userRequestStream, userResponseStream);
 		shell.register(this);
-		pool = Executors.newCachedThreadPool();
+		pool = ExecutionMode.fromConfig(config).newExecutor();
 		loginQueue = new LinkedBlockingQueue<>();
 		logoutQueue = new LinkedBlockingQueue<>();
 		registerQueue = new LinkedBlockingQueue<>();
@@ -90,6 +96,7 @@ public class Client implements IClientCli, Runnable {
 		listQueue = new LinkedBlockingQueue<>();
 		username = null;
 		lastMsg = new StringBuilder();
+		tickets = new ConcurrentHashMap<>();
 		loggedIn = false;
 		registered = false;
 		Cryptography.init();
@@ -109,7 +116,12 @@ public class Client implements IClientCli, Runnable {
 		try {
 			Socket socket = new Socket(config.getString("chatserver.host"),
 					config.getInt("chatserver.tcp.port"));
-			rsaChannel = new RSAChannel(new TCPChannel(socket), null);
+			TCPChannel transport = new TCPChannel(socket);
+			if (config.listKeys().contains("chatserver.framing")
+					&& config.getString("chatserver.framing").equals("binary")) {
+				transport.requestBinary();
+			}
+			rsaChannel = new RSAChannel(transport, null);
 			tcpChannel = rsaChannel;
 		} catch (UnknownHostException e) {
 			System.err.println("IP address of the host could not be determined: " + e.getMessage());
@@ -186,7 +198,7 @@ public class Client implements IClientCli, Runnable {
 					InetAddress.getByName(config.getString("chatserver.host")),
 					config.getInt("chatserver.udp.port"));
 			socket.send(packet);
-			buffer = new byte[1024];
+			buffer = new byte[ListPages.PAGE_SIZE];
 			packet = new DatagramPacket(buffer, buffer.length);
 			UDPResponseReader udpReader = new UDPResponseReader(socket, packet, listQueue);
 			pool.execute(udpReader);
@@ -310,6 +322,21 @@ public class Client implements IClientCli, Runnable {
 		return lastMsg.toString();
 	}
 
+	@Override
+	@Command
+	public String subscribe() throws IOException {
+		if (!loggedIn)
+			return "Not logged in.";
+		tcpChannel.send("!subscribe");
+		return null;
+	}
+
+	@Override
+	@Command
+	public String stats() throws IOException {
+		return TCPResponseReader.RESPONSES.stats();
+	}
+
 	@Override
 	@Command
 	public String exit() throws IOException {
@@ -373,6 +400,9 @@ public class Client implements IClientCli, Runnable {
 		try {
 			if (loggedIn)
 				return "Already logged in.";
+			if (resume(username)) {
+				return "Successfully logged in. Session resumed.";
+			}
 
 			// import private and public keys for communication
 			String clientPrivateKeyPath = config.getString("keys.dir") + "/" + username + ".pem";
@@ -401,6 +431,9 @@ public class Client implements IClientCli, Runnable {
 			//////////////////////////////////////////////////////////////////////////////////////////////
 
 			String secondMessageResponse = new String(tcpChannel.recvByte());
+			if (secondMessageResponse.startsWith("!busy")) {
+				return "Server busy, try again later.";
+			}
 			if (secondMessageResponse.startsWith("!ok")) {
 				String[] secondMessageParts = secondMessageResponse.split("\\s");
 				String clientChallengeFromServer = secondMessageParts[1];
@@ -413,16 +446,12 @@ public class Client implements IClientCli, Runnable {
 
 				// AES channel
 				aesChannel = new AESChannel(tcpChannel.getDecoratedChannel(), decodedIvParameter,
-						decodedSecretKeyString);
+						decodedSecretKeyString, true);
 				tcpChannel = aesChannel;
 				tcpChannel.send(encodedChatserverChallenge);
-				tcpReader = new TCPResponseReader(tcpChannel, userResponseStream, loginQueue,
-						logoutQueue, registerQueue, lookupQueue, lastMsg);
-				pool.execute(tcpReader);
 				// System.out.println("serverch: " +
 				// encodedChatserverChallenge);
-				this.username = username;
-				this.loggedIn = true;
+				startSession(username);
 				return "Successfully logged in.";
 			}
 		} catch (FileNotFoundException e) {
@@ -431,4 +460,42 @@ public class Client implements IClientCli, Runnable {
 		return "Authentication error.";
 	}
 
+	/**
+	 * Tries to resume the user's last session with its ticket instead of a
+	 * full handshake.
+	 *
+	 * @return false if there is no usable ticket or the server declined it
+	 */
+	private boolean resume(String username) throws IOException {
+		SessionTicket ticket = tickets.remove(username);
+		if (ticket == null || ticket.isExpired()) {
+			return false;
+		}
+		byte[] clientNonce = Cryptography.genSecureRandomNumber(Resumption.NONCE_LENGTH);
+		byte[] proof = Resumption.proof(ticket.getSecret(), clientNonce);
+		Channel transport = rsaChannel.getDecoratedChannel();
+		transport.send("!resume " + ticket.getTicket() + " "
+				+ new String(Base64.encode(clientNonce)) + " " + new String(Base64.encode(proof)));
+
+		String reply = new String(rsaChannel.recvByte());
+		if (!reply.startsWith("!resumed ")) {
+			return false;
+		}
+		byte[] serverNonce = Base64.decode(reply.substring(9).getBytes());
+		aesChannel = new AESChannel(transport,
+				Resumption.iv(ticket.getSecret(), clientNonce, serverNonce),
+				Resumption.sessionKey(ticket.getSecret(), clientNonce, serverNonce), true);
+		tcpChannel = aesChannel;
+		startSession(username);
+		return true;
+	}
+
+	private void startSession(String username) {
+		tcpReader = new TCPResponseReader(tcpChannel, userResponseStream, loginQueue,
+				logoutQueue, registerQueue, lookupQueue, lastMsg, username, tickets);
+		pool.execute(tcpReader);
+		this.username = username;
+		this.loggedIn = true;
+	}
+
 }
@@ -106,6 +106,24 @@ public interface IClientCli {
 	 */
 	public String lastMsg() throws IOException;
 
+	/**
+	 * Prints out how many responses of each kind the client has handled and
+	 * how long handling them took.
+	 *
+	 * @return the statistics
+	 * @throws IOException
+	 */
+	public String stats() throws IOException;
+
+	/**
+	 * Subscribes to the users going online and offline. The server answers
+	 * with the users currently online and then prints every change.
+	 *
+	 * @return null, updates are printed as they arrive
+	 * @throws IOException
+	 */
+	public String subscribe() throws IOException;
+
 	/**
 	 * Performs a shutdown of the client and release all resources.<br/>
 	 * Shutting down an already terminated client has no effect.
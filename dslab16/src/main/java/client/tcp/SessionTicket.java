@@ -0,0 +1,33 @@
+package client.tcp;
+
+/**
+ * A ticket the chatserver issued to resume the session without another RSA
+ * handshake, together with the secret that goes with it.
+ */
+public class SessionTicket {
+
+	private String ticket;
+	private byte[] secret;
+	private long expiresAt;
+
+	public SessionTicket(String ticket, byte[] secret, long expiresAt) {
+		this.ticket = ticket;
+		this.secret = secret;
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * @return the sealed ticket to present to the server
+	 */
+	public String getTicket() {
+		return ticket;
+	}
+
+	public byte[] getSecret() {
+		return secret;
+	}
+
+	public boolean isExpired() {
+		return System.currentTimeMillis() >= expiresAt;
+	}
+}
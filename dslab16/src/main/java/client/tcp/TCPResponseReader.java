@@ -2,12 +2,50 @@ package client.tcp;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 
+import org.bouncycastle.util.encoders.Base64;
+
 import channels.Channel;
+import util.OpcodeRegistry;
 
 public class TCPResponseReader extends Thread {
 
+	/**
+	 * Server responses the client understands, keyed by opcode. The queues
+	 * are unbounded, so handing a response over never blocks.
+	 */
+	public static final OpcodeRegistry<TCPResponseReader> RESPONSES = new OpcodeRegistry<>(
+			"Responses", (reader, response, args) -> reader.userResponseStream
+					.println("Error in reading server response: " + response));
+
+	static {
+		RESPONSES.register("!public", (reader, response, args) -> {
+			reader.lastMsg.setLength(0);
+			reader.lastMsg.append(response, args, response.length());
+			reader.userResponseStream.println(reader.lastMsg.toString());
+		});
+		RESPONSES.register("!successpublic", (reader, response, args) -> reader.userResponseStream
+				.println(response.substring(args)));
+		RESPONSES.register("!failedpublic", (reader, response, args) -> reader.userResponseStream
+				.println(response.substring(args)));
+		RESPONSES.register("!snapshot", (reader, response, args) -> reader.userResponseStream
+				.println("Online users:" + response.substring(args).replace(" ", "\n* ")));
+		RESPONSES.register("!presence", TCPResponseReader::presence);
+		RESPONSES.register("!login",
+				(reader, response, args) -> reader.loginQueue.offer(response.substring(args)));
+		RESPONSES.register("!logout", (reader, response, args) -> {
+			reader.logoutQueue.offer(response.substring(args));
+			reader.running = false;
+		});
+		RESPONSES.register("!register",
+				(reader, response, args) -> reader.registerQueue.offer(response.substring(args)));
+		RESPONSES.register("!lookup",
+				(reader, response, args) -> reader.lookupQueue.offer(response.substring(args)));
+		RESPONSES.register("!ticket", TCPResponseReader::ticket);
+	}
+
 	private Channel tcpChannel;
 	private PrintStream userResponseStream;
 	private BlockingQueue<String> loginQueue;
@@ -15,11 +53,14 @@ public class TCPResponseReader extends Thread {
 	private BlockingQueue<String> registerQueue;
 	private BlockingQueue<String> lookupQueue;
 	private StringBuilder lastMsg;
+	private String username;
+	private Map<String, SessionTicket> tickets;
+	private volatile boolean running;
 
 	public TCPResponseReader(Channel tcpChannel, PrintStream userResponseStream,
 			BlockingQueue<String> loginQueue, BlockingQueue<String> logoutQueue,
 			BlockingQueue<String> registerQueue, BlockingQueue<String> lookupQueue,
-			StringBuilder lastMsg) {
+			StringBuilder lastMsg, String username, Map<String, SessionTicket> tickets) {
 		this.tcpChannel = tcpChannel;
 		this.userResponseStream = userResponseStream;
 		this.loginQueue = loginQueue;
@@ -27,41 +68,49 @@ public class TCPResponseReader extends Thread {
 		this.registerQueue = registerQueue;
 		this.lookupQueue = lookupQueue;
 		this.lastMsg = lastMsg;
+		this.username = username;
+		this.tickets = tickets;
+	}
+
+	private static void presence(TCPResponseReader reader, String response, int args) {
+		String update = response.substring(args).trim();
+		if (!update.startsWith("+") && !update.startsWith("-")) {
+			reader.userResponseStream.println(update);
+			return;
+		}
+		for (String change : update.split(" ")) {
+			String status = change.charAt(0) == '+' ? " is online." : " is offline.";
+			reader.userResponseStream.println(change.substring(1) + status);
+		}
+	}
+
+	/**
+	 * Keeps the ticket for the next {@code !authenticate} of the user.
+	 */
+	private static void ticket(TCPResponseReader reader, String response, int args) {
+		String[] parts = response.substring(args).trim().split(" ");
+		try {
+			long lifetime = 1000 * Long.parseLong(parts[2]);
+			reader.tickets.put(reader.username, new SessionTicket(parts[0],
+					Base64.decode(parts[1].getBytes()), System.currentTimeMillis() + lifetime));
+		} catch (RuntimeException e) {
+			System.err.println("Ignoring malformed session ticket: " + e.getMessage());
+		}
 	}
 
 	@Override
 	public void run() {
 		try {
+			running = true;
 			String response;
-			while ((response = new String(tcpChannel.recvByte())) != null) {
+			while (running && (response = new String(tcpChannel.recvByte())) != null) {
 				if (Thread.currentThread().isInterrupted()) {
 					break;
 				}
-				if (response.startsWith("!public")) {
-					lastMsg.setLength(0);
-					lastMsg.append(response.substring(7));
-					userResponseStream.println(lastMsg.toString());
-				} else if (response.startsWith("!successpublic")) {
-					userResponseStream.println(response.substring(14));
-				} else if (response.startsWith("!failedpublic")) {
-					userResponseStream.println(response.substring(13));
-				} else if (response.startsWith("!login")) {
-					loginQueue.put(response.substring(6));
-				} else if (response.startsWith("!logout")) {
-					logoutQueue.put(response.substring(7));
-					break;
-				} else if (response.startsWith("!register")) {
-					registerQueue.put(response.substring(9));
-				} else if (response.startsWith("!lookup")) {
-					lookupQueue.put(response.substring(7));
-				} else {
-					userResponseStream.println("Error in reading server response: " + response);
-				}
+				RESPONSES.dispatch(this, response);
 			}
 		} catch (IOException e) {
 			System.err.println("Error occurred while communicating with server: " + e.getMessage());
-		} catch (InterruptedException e) {
-			System.err.println("Interrupted while waiting: " + e.getMessage());
 		} catch (NullPointerException e) {
 			userResponseStream.println("Connection has been closed. Use '!exit'.");
 		}
@@ -3,10 +3,19 @@ package client.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
 import java.util.concurrent.BlockingQueue;
 
+import util.ListPages;
+
+/**
+ * Receives the pages of a {@code !list} response and hands the reassembled
+ * list to the queue.
+ */
 public class UDPResponseReader extends Thread {
 
+	private static final int TIMEOUT = 3000;
+
 	private DatagramSocket socket;
 	private DatagramPacket packet;
 	private BlockingQueue<String> listQueue;
@@ -20,19 +29,29 @@ public class UDPResponseReader extends Thread {
 
 	@Override
 	public void run() {
+		String output = "List error.";
 		try {
-			socket.receive(packet);
-			String output = new String(packet.getData()).trim();
-			listQueue.put(output);
-			if (socket != null && !socket.isClosed()) {
-				socket.close();
-			}
+			ListPages.Assembler assembler = new ListPages.Assembler();
+			socket.setSoTimeout(TIMEOUT);
+			do {
+				packet.setLength(packet.getData().length);
+				socket.receive(packet);
+			} while (!assembler.add(packet.getData(), packet.getOffset(), packet.getLength()));
+			output = assembler.result();
+		} catch (SocketTimeoutException e) {
+			System.err.println("Timed out waiting for the rest of the list.");
 		} catch (IOException e) {
 			System.err.println(
 					"Error occurred while receiving packet from server: " + e.getMessage());
+		} finally {
+			if (socket != null && !socket.isClosed()) {
+				socket.close();
+			}
+		}
+		try {
+			listQueue.put(output);
 		} catch (InterruptedException e) {
 			System.err.println("Interrupted while waiting: " + e.getMessage());
 		}
-
 	}
 }
@@ -1,19 +1,21 @@
 package crypto;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
-import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -22,14 +24,22 @@ import org.bouncycastle.util.encoders.Base64;
 
 public class Cryptography {
 	
-	private static Mac macMD5 = null;
-	private static Mac macSHA1 = null;
-	private static Mac macSHA256 = null;
-	
 	private static SecureRandom secRand = null;
 	
 	private static KeyGenerator aesKeyGen = null;
 
+	// one-shot AES operations reuse a cipher per thread instead of looking up the provider each time
+	private static final ThreadLocal<Cipher> AES_CIPHER = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("AES/CTR/NoPadding");
+			} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
 	public static  enum HMAC_ALGORITHM {
 									    HmacMD5,
 							   			HmacSHA1,
@@ -49,10 +59,6 @@ public class Cryptography {
 		secRand = new SecureRandom();
 		
 		try {
-			macMD5 = Mac.getInstance("HmacMD5");
-			macSHA1 = Mac.getInstance("HmacSHA1");
-			macSHA256 = Mac.getInstance("HmacSHA256");
-			
 			aesKeyGen = KeyGenerator.getInstance("AES");
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
@@ -62,7 +68,7 @@ public class Cryptography {
 	}
 	
 	
-	private static byte[] genSecureRandomNumber(int size){
+	public static byte[] genSecureRandomNumber(int size){
 		
 		byte[] rand = new byte[size];
 		secRand.nextBytes(rand);
@@ -70,7 +76,7 @@ public class Cryptography {
 	}
 	
 	
-	private static SecretKey genAESSecretKey(int keySize){
+	public static SecretKey genAESSecretKey(int keySize){
 	
 		aesKeyGen.init(keySize);
 		return aesKeyGen.generateKey();
@@ -91,52 +97,47 @@ public class Cryptography {
 	}
 	
 	
-	private static byte[] genHMAC(Key key, HMAC_ALGORITHM algorithm, String message){
+	/**
+	 * Formats an HMAC the way it is transmitted in front of a message: the
+	 * decimal values of the bytes of its Base64 encoding.
+	 */
+	private static byte[] encodeHMacToken(byte[] hmac){
 		
-		Mac mac = null;
-		try{
-			if(algorithm.equals(HMAC_ALGORITHM.HmacMD5)){
-				macMD5.init(key);
-				mac = macMD5;
-			}else if(algorithm.equals(HMAC_ALGORITHM.HmacSHA1)){
-				macSHA1.init(key);
-				mac = macSHA1;
-			}else if(algorithm.equals(HMAC_ALGORITHM.HmacSHA256)){
-				macSHA256.init(key);
-				mac = macSHA256;
-			}
-		}catch (InvalidKeyException e) {
-			e.printStackTrace();
+		StringBuilder stringBuilder = new StringBuilder();
+		for(byte b : encodeIntoBase64(hmac)){
+			stringBuilder.append(b);
 		}
+		return stringBuilder.toString().getBytes();
+	}
+	
+	
+	/**
+	 * @return the HMAC token to put in front of the remaining bytes of the
+	 *         buffer, which are left untouched
+	 */
+	public static byte[] genHMacToken(Key key, HMAC_ALGORITHM algorithm, ByteBuffer message){
 		
-		mac.update(message.getBytes());
-		return mac.doFinal();
+		return encodeHMacToken(HmacEngine.mac(key, algorithm, message.duplicate()));
 	}
 	
 	
 	public static String genMessageWithHMac(Key key, HMAC_ALGORITHM algorithm, String message){
 			
-		byte[] hmac = Cryptography.genHMAC(key, algorithm, message);
-		hmac = Cryptography.encodeIntoBase64(hmac);
-		StringBuilder stringBuilder = new StringBuilder();
-		
-		for(byte b : hmac){
-			stringBuilder.append(b);
-		}
-		return stringBuilder.toString() + " " + message;		
+		byte[] messageBytes = message.getBytes();
+		byte[] hmac = HmacEngine.mac(key, algorithm, messageBytes, 0, messageBytes.length);
+		return new String(encodeHMacToken(hmac)) + " " + message;		
 	}
 	
 	
 	public static boolean checkHMacInMessage(Key key, HMAC_ALGORITHM algorithm, String privateMsg, boolean base64){
 		
-		byte[] receivedHash = privateMsg.substring(0, privateMsg.indexOf(" ")).getBytes();
-		//remove HMAC
+		byte[] msg = privateMsg.getBytes();
+		int separator = privateMsg.indexOf(" ");
+		byte[] receivedHash = Arrays.copyOfRange(msg, 0, separator);
 		
-		privateMsg = privateMsg.substring(privateMsg.indexOf(" ") + 1, privateMsg.length());
-				
-		privateMsg = genMessageWithHMac(key, algorithm, privateMsg);
-		byte[] computedHash = privateMsg.substring(0, privateMsg.indexOf(" ")).getBytes();
-		computedHash = Base64.decode(computedHash);
+		//HMAC of everything behind the separator, computed in place
+		byte[] hmac = HmacEngine.mac(key, algorithm, msg, separator + 1, msg.length - separator - 1);
+		byte[] computedHash = Base64.decode(encodeHMacToken(hmac));
 		
 		if(base64){
 			receivedHash = decodeFromBase64(receivedHash);
@@ -151,7 +152,7 @@ public class Cryptography {
 			IvParameterSpec ivParameterSpec = new IvParameterSpec(ivParameter);
 			SecretKey secretKey = new SecretKeySpec(secretKeyInBytes, 0, secretKeyInBytes.length,
 					"AES");
-			Cipher AEScipher = Cipher.getInstance("AES/CTR/NoPadding");
+			Cipher AEScipher = AES_CIPHER.get();
 
 			AEScipher.init(encryptMode, secretKey, ivParameterSpec);
 			return AEScipher.doFinal(toCrypt);
@@ -163,9 +164,69 @@ public class Cryptography {
 			System.err.println(e.getMessage());
 		} catch (BadPaddingException e) {
 			System.err.println(e.getMessage());
-		} catch (NoSuchAlgorithmException e) {
+		}
+		return null;
+	}
+
+	/**
+	 * Creates an AES/CTR cipher for one direction of a channel. The counter
+	 * advances across calls to {@link #update(Cipher, byte[])}, so consecutive
+	 * messages continue the key stream instead of restarting it at the IV.
+	 */
+	public static Cipher initAESStream(int encryptMode, byte[] ivParameter,
+			byte[] secretKeyInBytes) {
+		try {
+			Cipher AEScipher = Cipher.getInstance("AES/CTR/NoPadding");
+			AEScipher.init(encryptMode, new SecretKeySpec(secretKeyInBytes, "AES"),
+					new IvParameterSpec(ivParameter));
+			return AEScipher;
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+				| InvalidAlgorithmParameterException e) {
 			System.err.println(e.getMessage());
-		} catch (NoSuchPaddingException e) {
+		}
+		return null;
+	}
+
+	/**
+	 * Encrypts or decrypts the next message of a stream cipher created by
+	 * {@link #initAESStream(int, byte[], byte[])}.
+	 */
+	public static byte[] update(Cipher streamCipher, byte[] toCrypt) {
+		byte[] result = streamCipher.update(toCrypt);
+		return result == null ? new byte[0] : result;
+	}
+
+	/**
+	 * Encrypts or decrypts the remaining bytes of the buffer in place with a
+	 * stream cipher created by {@link #initAESStream(int, byte[], byte[])}.
+	 */
+	public static void update(Cipher streamCipher, ByteBuffer buffer) {
+		try {
+			streamCipher.update(buffer.duplicate(), buffer.duplicate());
+		} catch (ShortBufferException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates an RSA cipher that can be reused for any number of messages
+	 * with {@link #cryptoRSA(Cipher, byte[])}.
+	 */
+	public static Cipher initRSA(int encryptMode, Key key) {
+		try {
+			Cipher RSAcipher = Cipher.getInstance("RSA/NONE/OAEPWithSHA256AndMGF1Padding");
+			RSAcipher.init(encryptMode, key);
+			return RSAcipher;
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+			System.err.println(e.getMessage());
+		}
+		return null;
+	}
+
+	public static byte[] cryptoRSA(Cipher RSAcipher, byte[] toCrypt) {
+		try {
+			return RSAcipher.doFinal(toCrypt);
+		} catch (IllegalBlockSizeException | BadPaddingException e) {
 			System.err.println(e.getMessage());
 		}
 		return null;
@@ -0,0 +1,101 @@
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.crypto.Mac;
+
+import crypto.Cryptography.HMAC_ALGORITHM;
+
+/**
+ * Computes HMACs with {@link Mac} instances that are confined to the calling
+ * thread. Each thread keeps a small cache of instances already initialised
+ * per algorithm and key, so concurrent callers neither share state nor pay
+ * for a provider lookup and key set-up on every message.
+ */
+public final class HmacEngine {
+
+	private static final int MACS_PER_THREAD = 8;
+
+	private static final ThreadLocal<Map<CacheKey, Mac>> MACS = new ThreadLocal<Map<CacheKey, Mac>>() {
+		@Override
+		protected Map<CacheKey, Mac> initialValue() {
+			return new LinkedHashMap<CacheKey, Mac>(MACS_PER_THREAD, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<CacheKey, Mac> eldest) {
+					return size() > MACS_PER_THREAD;
+				}
+			};
+		}
+	};
+
+	private HmacEngine() {
+	}
+
+	/**
+	 * Computes the HMAC of {@code length} bytes of {@code data} starting at
+	 * {@code offset}.
+	 */
+	public static byte[] mac(Key key, HMAC_ALGORITHM algorithm, byte[] data, int offset,
+			int length) {
+		Mac mac = get(key, algorithm);
+		mac.update(data, offset, length);
+		return mac.doFinal();
+	}
+
+	/**
+	 * Computes the HMAC of the remaining bytes of {@code data}. The buffer's
+	 * position is advanced to its limit.
+	 */
+	public static byte[] mac(Key key, HMAC_ALGORITHM algorithm, ByteBuffer data) {
+		Mac mac = get(key, algorithm);
+		mac.update(data);
+		return mac.doFinal();
+	}
+
+	private static Mac get(Key key, HMAC_ALGORITHM algorithm) {
+		Map<CacheKey, Mac> macs = MACS.get();
+		CacheKey cacheKey = new CacheKey(algorithm, key);
+		Mac mac = macs.get(cacheKey);
+		if (mac == null) {
+			try {
+				mac = Mac.getInstance(algorithm.name());
+				mac.init(key);
+			} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+				throw new IllegalArgumentException("Cannot initialise " + algorithm, e);
+			}
+			macs.put(cacheKey, mac);
+		}
+		return mac;
+	}
+
+	private static class CacheKey {
+		private HMAC_ALGORITHM algorithm;
+		private Key key;
+
+		private CacheKey(HMAC_ALGORITHM algorithm, Key key) {
+			this.algorithm = algorithm;
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(algorithm, key);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CacheKey))
+				return false;
+			CacheKey other = (CacheKey) obj;
+			return algorithm == other.algorithm && key.equals(other.key);
+		}
+	}
+}
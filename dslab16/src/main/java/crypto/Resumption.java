@@ -0,0 +1,54 @@
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import crypto.Cryptography.HMAC_ALGORITHM;
+
+/**
+ * Key derivation for resuming a session from a ticket. The ticket carries a
+ * resumption secret that both sides know from the original handshake; each
+ * resumption derives a fresh AES key and IV from it and from one nonce of
+ * either side, so no key stream is ever reused.
+ */
+public final class Resumption {
+
+	public static final int NONCE_LENGTH = 32;
+
+	private Resumption() {
+	}
+
+	/**
+	 * @return the client's proof that it knows the secret of the ticket
+	 */
+	public static byte[] proof(byte[] secret, byte[] clientNonce) {
+		return derive(secret, "proof", clientNonce, new byte[0]);
+	}
+
+	/**
+	 * @return the 256 bit AES key of the resumed session
+	 */
+	public static byte[] sessionKey(byte[] secret, byte[] clientNonce, byte[] serverNonce) {
+		return derive(secret, "key", clientNonce, serverNonce);
+	}
+
+	/**
+	 * @return the 16 byte IV of the resumed session
+	 */
+	public static byte[] iv(byte[] secret, byte[] clientNonce, byte[] serverNonce) {
+		return Arrays.copyOf(derive(secret, "iv", clientNonce, serverNonce), 16);
+	}
+
+	private static byte[] derive(byte[] secret, String label, byte[] clientNonce,
+			byte[] serverNonce) {
+		byte[] labelBytes = label.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer input = ByteBuffer
+				.allocate(labelBytes.length + clientNonce.length + serverNonce.length);
+		input.put(labelBytes).put(clientNonce).put(serverNonce).flip();
+		return HmacEngine.mac(new SecretKeySpec(secret, "HmacSHA256"), HMAC_ALGORITHM.HmacSHA256,
+				input);
+	}
+}
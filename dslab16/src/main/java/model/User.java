@@ -1,15 +1,17 @@
 package model;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class User {
 
 	private String name;
 	private String password;
-	private boolean loggedIn;
+	private AtomicBoolean loggedIn;
 
 	public User(String name, String password) {
 		this.name = name;
 		this.password = password;
-		this.loggedIn = false;
+		this.loggedIn = new AtomicBoolean();
 	}
 
 	public String getName() {
@@ -29,11 +31,29 @@ public class User {
 	}
 
 	public boolean isLoggedIn() {
-		return loggedIn;
+		return loggedIn.get();
 	}
 
 	public void setLoggedIn(boolean loggedIn) {
-		this.loggedIn = loggedIn;
+		this.loggedIn.set(loggedIn);
+	}
+
+	/**
+	 * Marks the user as logged in unless somebody else already is.
+	 *
+	 * @return whether the user was logged out before
+	 */
+	public boolean tryLogin() {
+		return loggedIn.compareAndSet(false, true);
+	}
+
+	/**
+	 * Marks the user as logged out.
+	 *
+	 * @return whether the user was logged in before
+	 */
+	public boolean tryLogout() {
+		return loggedIn.compareAndSet(true, false);
 	}
 
 	@Override
@@ -63,7 +83,7 @@ public class User {
 
 	@Override
 	public String toString() {
-		return "User [name=" + name + ", password=" + password + ", loggedIn=" + loggedIn + "]";
+		return "User [name=" + name + ", password=" + password + ", loggedIn=" + loggedIn.get() + "]";
 	}
 
 }
@@ -0,0 +1,127 @@
+package model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * All known users of the chatserver, sorted by name. Logging in and out are
+ * compare-and-set transitions on the {@link User} itself, so there is no lock
+ * shared between sessions. Next to the accounts the registry keeps an index
+ * of the users currently online, updated on every transition, so listing
+ * them does not have to look at every account. Every change of the online
+ * set bumps a version, so derived views know when to rebuild, and is
+ * reported to the registered listeners.
+ */
+public class UserRegistry {
+
+	private ConcurrentSkipListMap<String, User> users;
+	private ConcurrentSkipListSet<String> online;
+	private AtomicLong version;
+	private List<Consumer<String>> listeners;
+
+	public UserRegistry() {
+		this.users = new ConcurrentSkipListMap<>();
+		this.online = new ConcurrentSkipListSet<>();
+		this.version = new AtomicLong();
+		this.listeners = new CopyOnWriteArrayList<>();
+	}
+
+	/**
+	 * Registers a listener that is called with the user's name after the user
+	 * was added to or removed from the online set, on the thread that logged
+	 * the user in or out. It has to look up the current state itself, calls
+	 * for the same user may race.
+	 */
+	public void addListener(Consumer<String> listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Adds an account unless one with the same name exists.
+	 */
+	public void add(User user) {
+		users.putIfAbsent(user.getName(), user);
+	}
+
+	/**
+	 * @return the user with the given name, or null if there is none
+	 */
+	public User get(String name) {
+		return users.get(name);
+	}
+
+	/**
+	 * Logs the user in.
+	 *
+	 * @return false if the user is already logged in elsewhere
+	 */
+	public boolean login(User user) {
+		if (!user.tryLogin()) {
+			return false;
+		}
+		reconcile(user);
+		return true;
+	}
+
+	/**
+	 * Logs the user out.
+	 *
+	 * @return false if the user was not logged in
+	 */
+	public boolean logout(User user) {
+		if (!user.tryLogout()) {
+			return false;
+		}
+		reconcile(user);
+		return true;
+	}
+
+	/**
+	 * A logout and a new login of the same user may race between their flag
+	 * transitions and their index updates. Every transition therefore writes
+	 * the index again until the flag it wrote for is still current.
+	 */
+	private void reconcile(User user) {
+		boolean loggedIn;
+		do {
+			loggedIn = user.isLoggedIn();
+			boolean changed = loggedIn ? online.add(user.getName())
+					: online.remove(user.getName());
+			if (changed) {
+				version.incrementAndGet();
+				for (Consumer<String> listener : listeners) {
+					listener.accept(user.getName());
+				}
+			}
+		} while (loggedIn != user.isLoggedIn());
+	}
+
+	/**
+	 * @return all accounts, sorted by name
+	 */
+	public Collection<User> all() {
+		return Collections.unmodifiableCollection(users.values());
+	}
+
+	/**
+	 * @return a number that changes whenever the online set does; it is bumped
+	 *         after the set has been updated
+	 */
+	public long version() {
+		return version.get();
+	}
+
+	/**
+	 * @return the names of the users online, sorted; a live view
+	 */
+	public NavigableSet<String> online() {
+		return Collections.unmodifiableNavigableSet(online);
+	}
+}
@@ -2,6 +2,8 @@ package nameserver;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Map;
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
@@ -17,4 +19,35 @@ public interface INameserverForChatserver extends Remote {
 
 	public String lookup(String username) throws RemoteException;
 
+	/**
+	 * Resolves a username qualified relative to this nameserver, e.g.
+	 * {@code alice.vienna} at the nameserver of {@code at}, by handing it down
+	 * to the nameserver of its zone.
+	 *
+	 * @return the registered address, or null if the user is not registered
+	 * @throws InvalidDomainException
+	 *             if one of the zones does not exist
+	 */
+	public String resolve(String username) throws RemoteException, InvalidDomainException;
+
+	/**
+	 * Registers several addresses at once; usernames are qualified relative
+	 * to this nameserver, as for {@link #registerUser(String, String)}.
+	 *
+	 * @return the reason for every username that could not be registered;
+	 *         empty if all were
+	 */
+	public Map<String, String> registerUsers(Map<String, String> addresses)
+			throws RemoteException;
+
+	/**
+	 * Resolves several usernames at once, qualified relative to this
+	 * nameserver, e.g. {@code alice.vienna} at the nameserver of {@code at}.
+	 *
+	 * @return the address of every requested username, null for users that
+	 *         are not registered or whose zone does not exist or cannot be
+	 *         reached
+	 */
+	public Map<String, String> lookupAll(Collection<String> usernames) throws RemoteException;
+
 }
@@ -0,0 +1,147 @@
+package nameserver;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The labels a nameserver knows at its level of the zone tree - its child
+ * zones or its users - mapped to their nameserver or address. Together the
+ * indexes of all nameservers form a trie over the labels of a name, read
+ * from right to left.
+ * <p/>
+ * Lookups take a label as a region of a longer name, e.g. {@code vienna} in
+ * {@code alice.vienna}, so no substring is created, and never lock: chains
+ * are immutable except for their values and a resize publishes a new table.
+ * Updates are serialized on the index.
+ */
+public class LabelIndex<V> {
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	private volatile AtomicReferenceArray<Node<V>> table;
+	private int size;
+
+	public LabelIndex() {
+		this.table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @return the value of the label, or null if it is not known
+	 */
+	public V get(String label) {
+		return get(label, 0, label.length());
+	}
+
+	/**
+	 * @return the value of the label {@code name[from, to)}, or null if it is
+	 *         not known
+	 */
+	public V get(String name, int from, int to) {
+		int hash = 0;
+		for (int i = from; i < to; i++) {
+			hash = 31 * hash + name.charAt(i);
+		}
+		hash = spread(hash);
+		int length = to - from;
+		AtomicReferenceArray<Node<V>> tab = table;
+		for (Node<V> node = tab.get(hash & (tab.length() - 1)); node != null; node = node.next) {
+			if (node.hash == hash && node.key.length() == length
+					&& node.key.regionMatches(0, name, from, length)) {
+				return node.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the previous value of the label, or null
+	 */
+	public synchronized V put(String label, V value) {
+		return insert(label, value, false);
+	}
+
+	/**
+	 * @return the current value of the label if there is one, in which case
+	 *         it is kept, or null if the value was added
+	 */
+	public synchronized V putIfAbsent(String label, V value) {
+		return insert(label, value, true);
+	}
+
+	private V insert(String key, V value, boolean onlyIfAbsent) {
+		int hash = spread(key.hashCode());
+		AtomicReferenceArray<Node<V>> tab = table;
+		int i = hash & (tab.length() - 1);
+		Node<V> head = tab.get(i);
+		for (Node<V> node = head; node != null; node = node.next) {
+			if (node.hash == hash && node.key.equals(key)) {
+				V previous = node.value;
+				if (!onlyIfAbsent) {
+					node.value = value;
+				}
+				return previous;
+			}
+		}
+		tab.set(i, new Node<>(key, hash, value, head));
+		if (++size > tab.length() / 4 * 3 && tab.length() < MAXIMUM_CAPACITY) {
+			resize(tab);
+		}
+		return null;
+	}
+
+	/**
+	 * Rehashes into a table twice the size. The chains are copied, so readers
+	 * still walking the old table are not disturbed.
+	 */
+	private void resize(AtomicReferenceArray<Node<V>> old) {
+		AtomicReferenceArray<Node<V>> tab = new AtomicReferenceArray<>(old.length() * 2);
+		for (int i = 0; i < old.length(); i++) {
+			for (Node<V> node = old.get(i); node != null; node = node.next) {
+				int j = node.hash & (tab.length() - 1);
+				tab.set(j, new Node<>(node.key, node.hash, node.value, tab.get(j)));
+			}
+		}
+		table = tab;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @return the number of labels
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return a copy of the index, sorted by label
+	 */
+	public SortedMap<String, V> snapshot() {
+		SortedMap<String, V> copy = new TreeMap<>();
+		AtomicReferenceArray<Node<V>> tab = table;
+		for (int i = 0; i < tab.length(); i++) {
+			for (Node<V> node = tab.get(i); node != null; node = node.next) {
+				copy.put(node.key, node.value);
+			}
+		}
+		return copy;
+	}
+
+	private static class Node<V> {
+		private final String key;
+		private final int hash;
+		private final Node<V> next;
+		private volatile V value;
+
+		private Node(String key, int hash, V value, Node<V> next) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+			this.next = next;
+		}
+	}
+}
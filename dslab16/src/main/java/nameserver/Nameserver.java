@@ -10,18 +10,16 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Collections;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import cli.Command;
 import cli.Shell;
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
 import util.Config;
+import util.ExecutionMode;
 
 public class Nameserver implements INameserverCli, Runnable {
 
@@ -33,8 +31,8 @@ public class Nameserver implements INameserverCli, Runnable {
 	private ExecutorService pool;
 	private Registry registry;	
 	private String domain;
-	private SortedMap<String, String> userAddressMap;	
-	private SortedMap<String, INameserver> subNameservers;
+	private LabelIndex<String> userAddressMap;	
+	private LabelIndex<INameserver> subNameservers;
 	private boolean isRoot;
 	private NameserverService nameserverService;
 	private INameserver remote;
@@ -56,9 +54,9 @@ public class Nameserver implements INameserverCli, Runnable {
 		this.userResponseStream = userResponseStream;
 		this.shell = new Shell(componentName, userRequestStream, userResponseStream);
 		this.shell.register(this);
-		this.pool = Executors.newCachedThreadPool();	
-		this.userAddressMap = Collections.synchronizedSortedMap(new TreeMap<String, String>());
-		this.subNameservers = Collections.synchronizedSortedMap(new TreeMap<String, INameserver>());
+		this.pool = ExecutionMode.fromConfig(config).newExecutor();
+		this.userAddressMap = new LabelIndex<>();
+		this.subNameservers = new LabelIndex<>();
 
 		if(config.listKeys().contains("domain")){
 			this.domain = config.getString("domain");
@@ -74,7 +72,7 @@ public class Nameserver implements INameserverCli, Runnable {
 		try {
 			if(isRoot){
 				registry = LocateRegistry.createRegistry(config.getInt("registry.port"));
-				nameserverService = new NameserverService(subNameservers,userAddressMap);
+				nameserverService = new NameserverService(subNameservers,userAddressMap,pool,forwardingTtl());
 				remote = (INameserver) UnicastRemoteObject.exportObject(nameserverService, 0);
 				try{
 					registry.bind(config.getString("root_id"), remote);
@@ -83,7 +81,7 @@ public class Nameserver implements INameserverCli, Runnable {
 				}
 			}else{
 				registry = LocateRegistry.getRegistry(config.getString("registry.host"), config.getInt("registry.port"));
-				nameserverService = new NameserverService(subNameservers,userAddressMap);
+				nameserverService = new NameserverService(subNameservers,userAddressMap,pool,forwardingTtl());
 				remote = (INameserver) UnicastRemoteObject.exportObject(nameserverService,0);
 				INameserver nsServericeOfRoot;
 				try {
@@ -105,11 +103,10 @@ public class Nameserver implements INameserverCli, Runnable {
 	@Command
 	public String nameservers() throws IOException {
 		String nss = "";
-		synchronized (subNameservers) {
-			int c=1;
-			for(Map.Entry<String,INameserver> ns : subNameservers.entrySet()){
-				nss += (c) + ". " + ns.getKey() + (c++<=subNameservers.size()?"\n":"");
-			}	
+		SortedMap<String, INameserver> zones = subNameservers.snapshot();
+		int c=1;
+		for(Map.Entry<String,INameserver> ns : zones.entrySet()){
+			nss += (c) + ". " + ns.getKey() + (c++<=zones.size()?"\n":"");
 		}
 		return nss;
 	}
@@ -118,13 +115,21 @@ public class Nameserver implements INameserverCli, Runnable {
 	@Command
 	public String addresses() throws IOException {
 		String as = "";
+		SortedMap<String, String> users = userAddressMap.snapshot();
 		int c = 1;
-		for(Map.Entry<String, String> user_adress : userAddressMap.entrySet()){
-			as += (c) + ". " + user_adress.getKey() + " " + user_adress.getValue() + (c<=userAddressMap.size()?"\n":"");
+		for(Map.Entry<String, String> user_adress : users.entrySet()){
+			as += (c) + ". " + user_adress.getKey() + " " + user_adress.getValue() + (c<=users.size()?"\n":"");
 		}
 		return as;
 	}
 	
+	/**
+	 * @return the optional {@code resolve.cache.ttl}, 0 if not configured
+	 */
+	private int forwardingTtl() {
+		return config.listKeys().contains("resolve.cache.ttl") ? config.getInt("resolve.cache.ttl") : 0;
+	}
+
 	private void printAndExit(String msg){
 		try{
 			if(shell!=null){
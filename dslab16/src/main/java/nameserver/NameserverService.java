@@ -2,7 +2,16 @@ package nameserver;
 
 import java.io.Serializable;
 import java.rmi.RemoteException;
-import java.util.SortedMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
 
@@ -10,12 +19,28 @@ import nameserver.exceptions.InvalidDomainException;
 public class NameserverService implements INameserver, Serializable{
 	
 	private static final long serialVersionUID = 1L;
-	private SortedMap<String, INameserver> subNameservers;
-	private SortedMap<String, String> userAddressMap;
+	private static final int MAX_FORWARDED = 100000;
+	private LabelIndex<INameserver> subNameservers;
+	private LabelIndex<String> userAddressMap;
+	private transient ExecutorService pool;
+	private long forwardingTtl;
+	private ConcurrentHashMap<String, Forwarded> forwarded;
 	
-	public NameserverService(SortedMap<String, INameserver> subNameservers, SortedMap<String, String> userAddressMap) {
+	/**
+	 * @param pool
+	 *            the pool on which batches are forwarded to the nameservers
+	 *            of child zones
+	 * @param forwardingTtl
+	 *            seconds for which addresses resolved by the nameservers of
+	 *            child zones are remembered; 0 to always ask them
+	 */
+	public NameserverService(LabelIndex<INameserver> subNameservers,
+			LabelIndex<String> userAddressMap, ExecutorService pool, int forwardingTtl) {
 		this.subNameservers = subNameservers;
 		this.userAddressMap = userAddressMap;
+		this.pool = pool;
+		this.forwardingTtl = TimeUnit.SECONDS.toNanos(Math.max(0, forwardingTtl));
+		this.forwarded = new ConcurrentHashMap<>();
 	}
 
 	@Override
@@ -29,24 +54,17 @@ public class NameserverService implements INameserver, Serializable{
 			}
 		}
 		*/
+		forwarded.remove(username);
 		int lastIndex = username.lastIndexOf(".");
 		if(lastIndex==-1){ //no "." in user name
-			synchronized (userAddressMap) {
-				userAddressMap.put(username, address);
-			}
+			userAddressMap.put(username, address);
 			System.out.println("\'" + username + "\' is registered");
 		}else{
-			
-			String parentZone = username.substring(lastIndex+1);
-			username = username.substring(0,lastIndex);
-			INameserverForChatserver subNs = null;
-			synchronized (subNameservers){						
-				subNs = subNameservers.get(parentZone);
-			}
+			INameserverForChatserver subNs = subNameservers.get(username, lastIndex+1, username.length());
 			if(subNs==null){
-				throw new InvalidDomainException("An intermediary zone \'" + parentZone +"\' does not exist!");
+				throw new InvalidDomainException("An intermediary zone \'" + username.substring(lastIndex+1) +"\' does not exist!");
 			}
-			subNs.registerUser(username, address);
+			subNs.registerUser(username.substring(0,lastIndex), address);
 		}
 	}
 
@@ -62,29 +80,184 @@ public class NameserverService implements INameserver, Serializable{
 		return userAddressMap.get(username);
 	}
 
+	@Override
+	public String resolve(String username) throws RemoteException, InvalidDomainException {
+		System.out.println("Resolve request for user \'" + username + "\'.");
+		int lastIndex = username.lastIndexOf(".");
+		if (lastIndex == -1) {
+			return userAddressMap.get(username);
+		}
+		long now = System.nanoTime();
+		Forwarded cached = forwarded.get(username);
+		if (cached != null && now - cached.expiresAt < 0) {
+			return cached.address;
+		}
+		INameserverForChatserver subNs = subNameservers.get(username, lastIndex + 1,
+				username.length());
+		if (subNs == null) {
+			throw new InvalidDomainException(
+					"Zone \'" + username.substring(lastIndex + 1) + "\' does not exist!");
+		}
+		String address = subNs.resolve(username.substring(0, lastIndex));
+		// only found addresses, a registration passing through here replaces them
+		if (address != null && forwardingTtl > 0) {
+			if (forwarded.size() >= MAX_FORWARDED) {
+				forwarded.values().removeIf(entry -> now - entry.expiresAt >= 0);
+			}
+			if (forwarded.size() < MAX_FORWARDED) {
+				forwarded.put(username, new Forwarded(address, now + forwardingTtl));
+			}
+		}
+		return address;
+	}
+
+	@Override
+	public Map<String, String> registerUsers(Map<String, String> addresses)
+			throws RemoteException {
+		System.out.println("Register request for " + addresses.size() + " users.");
+		Map<String, String> failures = new HashMap<>();
+		Map<String, Map<String, String>> batches = new HashMap<>();
+		for (Map.Entry<String, String> entry : addresses.entrySet()) {
+			String username = entry.getKey();
+			forwarded.remove(username);
+			int lastIndex = username.lastIndexOf(".");
+			if (lastIndex == -1) {
+				userAddressMap.put(username, entry.getValue());
+			} else {
+				batches.computeIfAbsent(username.substring(lastIndex + 1), zone -> new HashMap<>())
+						.put(username.substring(0, lastIndex), entry.getValue());
+			}
+		}
+		Map<String, String> errors = new HashMap<>();
+		Map<String, Map<String, String>> results = forward(batches,
+				(subNs, batch) -> subNs.registerUsers(batch), errors);
+		for (Map.Entry<String, Map<String, String>> batch : batches.entrySet()) {
+			String zone = batch.getKey();
+			Map<String, String> result = results.get(zone);
+			if (result == null) {
+				for (String username : batch.getValue().keySet()) {
+					failures.put(username + "." + zone, errors.get(zone));
+				}
+			} else {
+				for (Map.Entry<String, String> failure : result.entrySet()) {
+					failures.put(failure.getKey() + "." + zone, failure.getValue());
+				}
+			}
+		}
+		return failures;
+	}
+
+	@Override
+	public Map<String, String> lookupAll(Collection<String> usernames) throws RemoteException {
+		System.out.println("Lookup request for " + usernames.size() + " users by chatserver");
+		Map<String, String> addresses = new HashMap<>();
+		Map<String, Collection<String>> batches = new HashMap<>();
+		for (String username : usernames) {
+			int lastIndex = username.lastIndexOf(".");
+			if (lastIndex == -1) {
+				addresses.put(username, userAddressMap.get(username));
+			} else {
+				batches.computeIfAbsent(username.substring(lastIndex + 1),
+						zone -> new ArrayList<>()).add(username.substring(0, lastIndex));
+			}
+		}
+		Map<String, Map<String, String>> results = forward(batches,
+				(subNs, batch) -> subNs.lookupAll(batch), new HashMap<>());
+		for (Map.Entry<String, Collection<String>> batch : batches.entrySet()) {
+			String zone = batch.getKey();
+			Map<String, String> result = results.get(zone);
+			for (String username : batch.getValue()) {
+				addresses.put(username + "." + zone, result == null ? null : result.get(username));
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * Hands each zone's batch to the nameserver of that zone, all zones in
+	 * parallel, and waits for the results.
+	 *
+	 * @param errors
+	 *            receives the reason for every zone without a result
+	 * @return the result of every zone whose nameserver answered
+	 */
+	private <T> Map<String, Map<String, String>> forward(Map<String, T> batches,
+			BatchCall<T> call, Map<String, String> errors) {
+		Map<String, Future<Map<String, String>>> pending = new HashMap<>();
+		Map<String, Map<String, String>> results = new HashMap<>();
+		for (Map.Entry<String, T> batch : batches.entrySet()) {
+			String zone = batch.getKey();
+			INameserverForChatserver subNs = subNameservers.get(zone);
+			if (subNs == null) {
+				errors.put(zone, "An intermediary zone \'" + zone + "\' does not exist!");
+			} else if (batches.size() == 1) {
+				// nothing to overlap with
+				try {
+					results.put(zone, call.forward(subNs, batch.getValue()));
+				} catch (RemoteException e) {
+					errors.put(zone, "Zone \'" + zone + "\' is not reachable: " + e.getMessage());
+				}
+			} else {
+				pending.put(zone, pool.submit(() -> call.forward(subNs, batch.getValue())));
+			}
+		}
+		for (Map.Entry<String, Future<Map<String, String>>> future : pending.entrySet()) {
+			String zone = future.getKey();
+			try {
+				results.put(zone, future.getValue().get());
+			} catch (ExecutionException e) {
+				errors.put(zone,
+						"Zone \'" + zone + "\' is not reachable: " + e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				errors.put(zone, "Interrupted while waiting for zone \'" + zone + "\'.");
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * One of the batch operations, as invoked on a child zone's nameserver.
+	 */
+	private interface BatchCall<T> {
+		Map<String, String> forward(INameserverForChatserver nameserver, T batch)
+				throws RemoteException;
+	}
+
+	/**
+	 * An address resolved by the nameserver of a child zone.
+	 */
+	private static class Forwarded implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private String address;
+		private long expiresAt;
+
+		private Forwarded(String address, long expiresAt) {
+			this.address = address;
+			this.expiresAt = expiresAt;
+		}
+	}
+
 	@Override
 	public void registerNameserver(String domain, INameserver nameserver,
 			INameserverForChatserver nameserverForChatserver)
 			throws RemoteException, AlreadyRegisteredException, InvalidDomainException {
-		synchronized (subNameservers) {
-			if(subNameservers.keySet().contains(domain)){
+		int lastIndex = domain.lastIndexOf(".");
+		if(lastIndex==-1){
+			if(subNameservers.putIfAbsent(domain,nameserver)!=null){
 				throw new AlreadyRegisteredException("Zone \'" + domain +"\' is already registered!");
-			}else{				
-				int lastIndex = domain.lastIndexOf(".");
-				if(lastIndex==-1){
-					System.out.println("Registering nameserver for zone \'" + domain + "\'");
-					subNameservers.put(domain,nameserver);
-				}else{
-					String childZone = domain.substring(0,lastIndex);
-					String parentZone = domain.substring(lastIndex+1);
-					INameserver subNs = subNameservers.get(parentZone);
-					if(subNs==null){
-						throw new InvalidDomainException("An intermediary zone does not exist!");
-					}
-					System.out.println("\'" + childZone + "\' will be sent for registration in next nameserver \'" + parentZone + "\'");
-					subNs.registerNameserver(childZone, nameserver, nameserverForChatserver);
-				}
 			}
-		}		
+			System.out.println("Registering nameserver for zone \'" + domain + "\'");
+		}else{
+			String childZone = domain.substring(0,lastIndex);
+			String parentZone = domain.substring(lastIndex+1);
+			INameserver subNs = subNameservers.get(parentZone);
+			if(subNs==null){
+				throw new InvalidDomainException("An intermediary zone does not exist!");
+			}
+			// no lock is held while the next nameserver registers the zone
+			System.out.println("\'" + childZone + "\' will be sent for registration in next nameserver \'" + parentZone + "\'");
+			subNs.registerNameserver(childZone, nameserver, nameserverForChatserver);
+		}
 	}
 }
@@ -0,0 +1,148 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable buffers in a few size classes, one pool for heap and one
+ * for direct buffers. Each thread keeps a small cache per size class and
+ * falls back to a shared queue, so buffers released on another thread than
+ * they were acquired on find their way back. Requests above the largest size
+ * class are allocated as usual and never pooled.
+ * <p/>
+ * A released buffer must not be used any more by whoever released it.
+ */
+public class BufferPool {
+
+	private static final int[] SIZE_CLASSES = { 256, 1024, 4096, 16384, 65536 };
+	private static final int THREAD_CACHE_SIZE = 8;
+	private static final int SHARED_SIZE = 256;
+
+	public static final BufferPool HEAP = new BufferPool("heap", false);
+	public static final BufferPool DIRECT = new BufferPool("direct", true);
+
+	private String name;
+	private boolean direct;
+	private ThreadLocal<List<ArrayDeque<ByteBuffer>>> threadCaches;
+	private List<Queue<ByteBuffer>> shared;
+	private AtomicInteger[] sharedSizes;
+	private LongAdder acquired = new LongAdder();
+	private LongAdder hits = new LongAdder();
+	private LongAdder released = new LongAdder();
+	private LongAdder oversized = new LongAdder();
+
+	private BufferPool(String name, boolean direct) {
+		this.name = name;
+		this.direct = direct;
+		this.threadCaches = ThreadLocal.withInitial(() -> {
+			List<ArrayDeque<ByteBuffer>> caches = new ArrayList<>();
+			for (int i = 0; i < SIZE_CLASSES.length; i++) {
+				caches.add(new ArrayDeque<>(THREAD_CACHE_SIZE));
+			}
+			return caches;
+		});
+		this.shared = new ArrayList<>();
+		this.sharedSizes = new AtomicInteger[SIZE_CLASSES.length];
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			shared.add(new ConcurrentLinkedQueue<>());
+			sharedSizes[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Hands out a buffer with position 0 and limit {@code capacity}. Its
+	 * actual capacity may be larger; {@link ByteBuffer#clear()} makes all of
+	 * it available.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int sizeClass = sizeClassFor(capacity);
+		if (sizeClass < 0) {
+			oversized.increment();
+			return allocate(capacity);
+		}
+		acquired.increment();
+		ByteBuffer buffer = threadCaches.get().get(sizeClass).poll();
+		if (buffer == null) {
+			buffer = shared.get(sizeClass).poll();
+			if (buffer != null) {
+				sharedSizes[sizeClass].decrementAndGet();
+			}
+		}
+		if (buffer == null) {
+			buffer = allocate(SIZE_CLASSES[sizeClass]);
+		} else {
+			hits.increment();
+		}
+		buffer.clear().limit(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer acquired from this pool. Oversized buffers are left to
+	 * the garbage collector.
+	 */
+	public void release(ByteBuffer buffer) {
+		int sizeClass = sizeClassOf(buffer);
+		if (sizeClass < 0) {
+			return;
+		}
+		released.increment();
+		buffer.clear();
+		ArrayDeque<ByteBuffer> cache = threadCaches.get().get(sizeClass);
+		if (cache.size() < THREAD_CACHE_SIZE) {
+			cache.push(buffer);
+		} else if (sharedSizes[sizeClass].incrementAndGet() <= SHARED_SIZE) {
+			shared.get(sizeClass).add(buffer);
+		} else {
+			sharedSizes[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of pooled buffers acquired but not yet released
+	 */
+	public long outstanding() {
+		return acquired.sum() - released.sum();
+	}
+
+	/**
+	 * @return acquisitions, hit rate, outstanding and oversized buffers
+	 */
+	public String stats() {
+		long acquisitions = acquired.sum();
+		double hitRate = acquisitions == 0 ? 0 : 100.0 * hits.sum() / acquisitions;
+		return String.format("Buffer pool (%s): %d acquired, %.1f%% hits, %d outstanding, "
+				+ "%d oversized", name, acquisitions, hitRate, outstanding(), oversized.sum());
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	private static int sizeClassFor(int capacity) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (capacity <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int sizeClassOf(ByteBuffer buffer) {
+		if (buffer.isDirect() != direct) {
+			return -1;
+		}
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (buffer.capacity() == SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,61 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Selects the executor a component runs its blocking tasks on (shell,
+ * listeners and per-connection handlers). Configured with the optional
+ * {@code executor} property of the component.
+ */
+public enum ExecutionMode {
+
+	/**
+	 * One platform thread per task, reused through a cached thread pool.
+	 */
+	PLATFORM {
+		@Override
+		public ExecutorService newExecutor() {
+			return Executors.newCachedThreadPool();
+		}
+	},
+
+	/**
+	 * One virtual thread per task. Falls back to {@link #PLATFORM} if the
+	 * running JVM does not support virtual threads.
+	 */
+	VIRTUAL {
+		@Override
+		public ExecutorService newExecutor() {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+				System.err.println(
+						"Virtual threads are not supported by this JVM, using platform threads.");
+				return PLATFORM.newExecutor();
+			}
+		}
+	};
+
+	/**
+	 * @return a new executor running each submitted task on its own thread
+	 */
+	public abstract ExecutorService newExecutor();
+
+	/**
+	 * Reads the {@code executor} property ('platform' or 'virtual') of the
+	 * given configuration.
+	 *
+	 * @param config
+	 *            the component's configuration
+	 * @return the configured mode, {@link #PLATFORM} if none is set
+	 */
+	public static ExecutionMode fromConfig(Config config) {
+		if (!config.listKeys().contains("executor")) {
+			return PLATFORM;
+		}
+		return valueOf(config.getString("executor").trim().toUpperCase());
+	}
+}
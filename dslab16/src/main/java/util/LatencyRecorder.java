@@ -0,0 +1,65 @@
+package util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent latency samples in a fixed ring and computes
+ * percentiles over them on demand. Recording is lock-free and may happen from
+ * any number of threads.
+ */
+public class LatencyRecorder {
+
+	private AtomicLongArray samples;
+	private AtomicLong count;
+
+	/**
+	 * @param capacity
+	 *            the number of recent samples percentiles are computed over
+	 */
+	public LatencyRecorder(int capacity) {
+		this.samples = new AtomicLongArray(capacity);
+		this.count = new AtomicLong();
+	}
+
+	/**
+	 * @param nanos
+	 *            the measured latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long index = count.getAndIncrement();
+		samples.set((int) (index % samples.length()), nanos);
+	}
+
+	/**
+	 * @return the total number of recorded samples
+	 */
+	public long count() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the p50, p90, p99 and maximum of the retained samples, formatted
+	 * in milliseconds.
+	 */
+	public String summary() {
+		int size = (int) Math.min(count.get(), samples.length());
+		if (size == 0) {
+			return "no samples";
+		}
+		long[] sorted = new long[size];
+		for (int i = 0; i < size; i++) {
+			sorted[i] = samples.get(i);
+		}
+		Arrays.sort(sorted);
+		return String.format("p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+				millis(sorted, 0.50), millis(sorted, 0.90), millis(sorted, 0.99),
+				sorted[size - 1] / 1e6);
+	}
+
+	private static double millis(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
+}
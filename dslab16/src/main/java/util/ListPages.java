@@ -0,0 +1,144 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the {@code !list} response into datagrams of at most
+ * {@link #PAGE_SIZE} bytes and puts it back together on the client. Each page
+ * starts with a header line
+ *
+ * <pre>
+ * !listpage &lt;version&gt; &lt;seq&gt;/&lt;count&gt;
+ * </pre>
+ *
+ * followed by whole entries of the list, so no username is split between
+ * pages. All pages of one response carry the same version.
+ */
+public final class ListPages {
+
+	/**
+	 * Fits into an Ethernet frame together with the IP and UDP headers.
+	 */
+	public static final int PAGE_SIZE = 1024;
+
+	private static final String HEADER = "!listpage ";
+	private static final String TITLE = "Online users:";
+	private static final int MAX_HEADER_LENGTH = 64;
+
+	private ListPages() {
+	}
+
+	/**
+	 * Entries are measured in encoded bytes. A name too long to fit into a
+	 * page on its own is left out.
+	 *
+	 * @return the pages listing the given names, at least one
+	 */
+	public static List<byte[]> paginate(long version, Iterable<String> names) {
+		int budget = PAGE_SIZE - MAX_HEADER_LENGTH;
+		List<StringBuilder> bodies = new ArrayList<>();
+		StringBuilder body = new StringBuilder();
+		int bodyLength = 0;
+		bodies.add(body);
+		for (String name : names) {
+			String entry = "\n* " + name;
+			int entryLength = entry.getBytes(StandardCharsets.UTF_8).length;
+			if (entryLength > budget) {
+				System.err.println("Leaving out user whose name exceeds a list page: " + name);
+				continue;
+			}
+			if (bodyLength > 0 && bodyLength + entryLength > budget) {
+				body = new StringBuilder();
+				bodyLength = 0;
+				bodies.add(body);
+			}
+			body.append(entry);
+			bodyLength += entryLength;
+		}
+
+		List<byte[]> pages = new ArrayList<>(bodies.size());
+		for (int i = 0; i < bodies.size(); i++) {
+			String page = HEADER + version + " " + i + "/" + bodies.size() + "\n" + bodies.get(i);
+			pages.add(page.getBytes(StandardCharsets.UTF_8));
+		}
+		return pages;
+	}
+
+	/**
+	 * Collects the pages of one response in any order. Pages of a newer
+	 * version replace whatever was collected so far.
+	 */
+	public static class Assembler {
+
+		private long version = -1;
+		private String[] bodies;
+		private int missing;
+		private String unpaged;
+
+		/**
+		 * Adds a received datagram. A datagram that is not a page, e.g. an error
+		 * message, completes the response as it is.
+		 *
+		 * @return true once the response is complete
+		 */
+		public boolean add(byte[] data, int offset, int length) {
+			String datagram = new String(data, offset, length, StandardCharsets.UTF_8);
+			int headerEnd = datagram.indexOf('\n');
+			if (!datagram.startsWith(HEADER) || headerEnd < 0) {
+				unpaged = datagram.trim();
+				return true;
+			}
+			String[] header = datagram.substring(HEADER.length(), headerEnd).split("[ /]");
+			try {
+				long pageVersion = Long.parseLong(header[0]);
+				int seq = Integer.parseInt(header[1]);
+				int count = Integer.parseInt(header[2]);
+				if (pageVersion < version || seq < 0 || seq >= count) {
+					return isComplete();
+				}
+				if (pageVersion > version || bodies == null || bodies.length != count) {
+					version = pageVersion;
+					bodies = new String[count];
+					missing = count;
+				}
+				if (bodies[seq] == null) {
+					bodies[seq] = datagram.substring(headerEnd + 1);
+					missing--;
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				System.err.println("Ignoring malformed list page: " + e.getMessage());
+			}
+			return isComplete();
+		}
+
+		public boolean isComplete() {
+			return unpaged != null || (bodies != null && missing == 0);
+		}
+
+		/**
+		 * @return the response as one string; null until it is complete
+		 */
+		public String result() {
+			if (unpaged != null) {
+				return unpaged;
+			}
+			if (!isComplete()) {
+				return null;
+			}
+			StringBuilder result = new StringBuilder(TITLE);
+			for (String body : bodies) {
+				result.append(body);
+			}
+			return result.toString();
+		}
+
+		/**
+		 * @return how many pages are still missing, or -1 if none arrived yet
+		 */
+		public int missing() {
+			return bodies == null ? -1 : missing;
+		}
+	}
+}
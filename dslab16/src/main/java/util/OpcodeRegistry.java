@@ -0,0 +1,145 @@
+package util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes protocol messages to handlers by their opcode, the registered
+ * prefix a message starts with, e.g. {@code !login}. Opcodes are looked up
+ * character by character in a trie, so dispatch costs the length of the
+ * opcode regardless of how many commands are registered, and nothing is
+ * copied out of the message. The longest matching opcode wins.
+ * <p/>
+ * Each opcode counts its messages and records handling times. Handlers may
+ * be registered at any time; dispatch always sees a consistent table.
+ *
+ * @param <C>
+ *            the context handlers act on, e.g. the connection
+ */
+public class OpcodeRegistry<C> {
+
+	private static final int ALPHABET = 128;
+	private static final int RETAINED_SAMPLES = 1024;
+
+	/**
+	 * Handles the messages of one opcode.
+	 */
+	public interface Handler<C> {
+		/**
+		 * @param context
+		 *            the context the message was received on
+		 * @param message
+		 *            the whole message
+		 * @param argumentsStart
+		 *            index of the first character after the opcode
+		 */
+		void handle(C context, String message, int argumentsStart) throws IOException;
+	}
+
+	private String name;
+	private Map<String, Command<C>> commands = new TreeMap<>();
+	private volatile Node<C> root = new Node<>();
+	private Handler<C> fallback;
+	private LongAdder unknown = new LongAdder();
+
+	/**
+	 * @param name
+	 *            the name reported by {@link #stats()}
+	 * @param fallback
+	 *            handles messages without a registered opcode
+	 */
+	public OpcodeRegistry(String name, Handler<C> fallback) {
+		this.name = name;
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Registers the handler for an opcode, replacing any previous one.
+	 */
+	public synchronized void register(String opcode, Handler<C> handler) {
+		commands.put(opcode, new Command<>(opcode, handler));
+		Node<C> rebuilt = new Node<>();
+		for (Command<C> command : commands.values()) {
+			Node<C> node = rebuilt;
+			for (int i = 0; i < command.opcode.length(); i++) {
+				char c = command.opcode.charAt(i);
+				if (c >= ALPHABET) {
+					throw new IllegalArgumentException("Opcode must be ASCII: " + command.opcode);
+				}
+				if (node.children[c] == null) {
+					node.children[c] = new Node<>();
+				}
+				node = node.children[c];
+			}
+			node.command = command;
+		}
+		root = rebuilt;
+	}
+
+	/**
+	 * Hands the message to the handler of its opcode, or to the fallback.
+	 */
+	public void dispatch(C context, String message) throws IOException {
+		Command<C> command = null;
+		Node<C> node = root;
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			node = c < ALPHABET ? node.children[c] : null;
+			if (node == null) {
+				break;
+			}
+			if (node.command != null) {
+				command = node.command;
+			}
+		}
+
+		if (command == null) {
+			unknown.increment();
+			fallback.handle(context, message, 0);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			command.handler.handle(context, message, command.opcode.length());
+		} finally {
+			command.latency.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return per opcode message counts and handling times
+	 */
+	public String stats() {
+		StringBuilder stats = new StringBuilder(name + ": " + unknown.sum() + " unknown");
+		for (Command<C> command : snapshot().values()) {
+			stats.append("\n  ").append(command.opcode).append(' ')
+					.append(command.latency.count()).append(" handled, ")
+					.append(command.latency.summary());
+		}
+		return stats.toString();
+	}
+
+	private synchronized Map<String, Command<C>> snapshot() {
+		return new TreeMap<>(commands);
+	}
+
+	private static class Node<C> {
+		@SuppressWarnings("unchecked")
+		private Node<C>[] children = (Node<C>[]) new Node<?>[ALPHABET];
+		private Command<C> command;
+	}
+
+	private static class Command<C> {
+		private String opcode;
+		private Handler<C> handler;
+		private LatencyRecorder latency;
+
+		private Command(String opcode, Handler<C> handler) {
+			this.opcode = opcode;
+			this.handler = handler;
+			this.latency = new LatencyRecorder(RETAINED_SAMPLES);
+		}
+	}
+}
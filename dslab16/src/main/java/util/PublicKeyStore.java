@@ -0,0 +1,176 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the public keys of a directory of {@code <name>.pub.pem} files from
+ * memory. All keys are parsed once up front; run as a thread, the store
+ * watches the directory and reloads files that are added or changed and
+ * forgets deleted ones. A key that is not cached yet, e.g. because the watch
+ * event has not been processed, is read from disk on demand; a name without
+ * a key file is then remembered for a few seconds, so repeated lookups of
+ * unknown users do not reach the disk.
+ */
+public class PublicKeyStore extends Thread {
+
+	private static final String SUFFIX = ".pub.pem";
+	private static final long UNKNOWN_TTL = TimeUnit.SECONDS.toNanos(5);
+	private static final int MAX_UNKNOWN = 1024;
+
+	private File directory;
+	private Map<String, PublicKey> keys;
+	// names without a key file, until when they are not looked up again
+	private Map<String, Long> unknown;
+	private volatile WatchService watcher;
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder reloads = new LongAdder();
+
+	public PublicKeyStore(File directory) {
+		this.directory = directory;
+		this.keys = new ConcurrentHashMap<>();
+		this.unknown = new ConcurrentHashMap<>();
+		loadAll();
+	}
+
+	/**
+	 * @return the public key of the given name, or null if there is no key
+	 *         file for it or the name is not a plain file name
+	 */
+	public PublicKey get(String name) {
+		PublicKey key = keys.get(name);
+		if (key != null) {
+			hits.increment();
+			return key;
+		}
+		misses.increment();
+		if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0
+				|| name.indexOf(File.separatorChar) >= 0 || name.contains("..")) {
+			return null;
+		}
+		long now = System.nanoTime();
+		Long until = unknown.get(name);
+		if (until != null && now - until < 0) {
+			return null;
+		}
+		key = load(name + SUFFIX);
+		if (key == null) {
+			remember(name, now);
+		}
+		return key;
+	}
+
+	private void remember(String name, long now) {
+		if (unknown.size() >= MAX_UNKNOWN) {
+			unknown.values().removeIf(until -> now - until >= 0);
+			if (unknown.size() >= MAX_UNKNOWN) {
+				return;
+			}
+		}
+		unknown.put(name, now + UNKNOWN_TTL);
+	}
+
+	public void run() {
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			while (true) {
+				WatchKey key = watcher.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						loadAll();
+						continue;
+					}
+					String file = ((Path) event.context()).getFileName().toString();
+					if (!file.endsWith(SUFFIX)) {
+						continue;
+					}
+					if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						keys.remove(nameOf(file));
+					} else {
+						load(file);
+					}
+				}
+				if (!key.reset()) {
+					System.err.println("Key directory " + directory + " is no longer watched.");
+					return;
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.err.println("Cannot watch key directory " + directory + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops watching the directory.
+	 */
+	public void close() {
+		try {
+			if (watcher != null) {
+				watcher.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Error while closing key directory watcher: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return cached keys, hits, misses and reloads
+	 */
+	public String stats() {
+		return "Public keys: " + keys.size() + " cached, " + hits.sum() + " hits, "
+				+ misses.sum() + " misses, " + reloads.sum() + " reloads";
+	}
+
+	private void loadAll() {
+		File[] files = directory.listFiles((dir, file) -> file.endsWith(SUFFIX));
+		if (files == null) {
+			System.err.println("Cannot list key directory " + directory + ".");
+			return;
+		}
+		for (File file : files) {
+			load(file.getName());
+		}
+	}
+
+	private PublicKey load(String file) {
+		File path = new File(directory, file);
+		if (!path.isFile()) {
+			return null;
+		}
+		try {
+			PublicKey key = Keys.readPublicPEM(path);
+			if (key != null) {
+				keys.put(nameOf(file), key);
+				unknown.remove(nameOf(file));
+				reloads.increment();
+			}
+			return key;
+		} catch (IOException | RuntimeException e) {
+			// possibly still being written; the next event reloads it
+			System.err.println("Cannot read public key " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static String nameOf(String file) {
+		return file.substring(0, file.length() - SUFFIX.length());
+	}
+}
@@ -0,0 +1,143 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal micro-benchmark runner in the spirit of JMH, without the
+ * dependency: an operation is run for a number of warm-up rounds, then for
+ * measured rounds on the calling thread, and the average time and heap
+ * allocation per operation are reported. {@link #report(String)} writes the
+ * results of a suite as JSON to {@code reports/bench/}, so runs can be
+ * compared over time.
+ */
+public final class Bench {
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Keeps results alive so the JIT cannot drop the measured work.
+	 */
+	private static volatile Object sink;
+
+	private static final File REPORTS = new File("reports/bench");
+	private static final List<Result> RESULTS = new ArrayList<>();
+
+	private Bench() {
+	}
+
+	/**
+	 * A benchmarked operation. Its result is consumed by the runner.
+	 */
+	public interface Operation {
+		Object run() throws Exception;
+	}
+
+	/**
+	 * Runs the operation and prints the result.
+	 *
+	 * @param name
+	 *            the name reported for the operation
+	 * @param warmupRounds
+	 *            rounds run before measuring
+	 * @param rounds
+	 *            measured rounds
+	 * @param opsPerRound
+	 *            invocations per round
+	 * @param operation
+	 *            the operation to measure
+	 * @return the measurement
+	 */
+	public static Result run(String name, int warmupRounds, int rounds, int opsPerRound,
+			Operation operation) throws Exception {
+		for (int r = 0; r < warmupRounds; r++) {
+			for (int i = 0; i < opsPerRound; i++) {
+				sink = operation.run();
+			}
+		}
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < opsPerRound; i++) {
+				sink = operation.run();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+		long ops = (long) rounds * opsPerRound;
+		Result result = new Result(name, (double) elapsed / ops, (double) allocated / ops);
+		System.out.println(result);
+		RESULTS.add(result);
+		return result;
+	}
+
+	/**
+	 * Writes all results measured since the previous report to
+	 * {@code reports/bench/<suite>.json}.
+	 */
+	public static void report(String suite) throws IOException {
+		REPORTS.mkdirs();
+		File file = new File(REPORTS, suite + ".json");
+		try (Writer out = new FileWriter(file)) {
+			out.write("{\n  \"suite\": " + quote(suite) + ",\n  \"timestamp\": "
+					+ quote(Instant.now().toString()) + ",\n  \"java\": "
+					+ quote(System.getProperty("java.version")) + ",\n  \"results\": [");
+			for (int i = 0; i < RESULTS.size(); i++) {
+				Result result = RESULTS.get(i);
+				out.write(String.format(Locale.ROOT,
+						"%s\n    { \"name\": %s, \"nsPerOp\": %.1f, \"bytesPerOp\": %.1f, "
+								+ "\"opsPerSecond\": %.1f }",
+						i == 0 ? "" : ",", quote(result.name), result.nanosPerOp,
+						result.bytesPerOp, 1e9 / result.nanosPerOp));
+			}
+			out.write("\n  ]\n}\n");
+		}
+		RESULTS.clear();
+		System.out.println("Results written to " + file);
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * Average cost of one operation.
+	 */
+	public static class Result {
+		private String name;
+		private double nanosPerOp;
+		private double bytesPerOp;
+
+		private Result(String name, double nanosPerOp, double bytesPerOp) {
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.bytesPerOp = bytesPerOp;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getNanosPerOp() {
+			return nanosPerOp;
+		}
+
+		public double getBytesPerOp() {
+			return bytesPerOp;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-45s %12.1f ns/op %10.1f B/op", name, nanosPerOp, bytesPerOp);
+		}
+	}
+}
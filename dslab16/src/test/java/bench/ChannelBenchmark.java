@@ -0,0 +1,91 @@
+package bench;
+
+import java.io.File;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import channels.AESChannel;
+import channels.Base64Channel;
+import channels.Channel;
+import channels.RSAChannel;
+import crypto.Cryptography;
+import crypto.Cryptography.HMAC_ALGORITHM;
+import util.Keys;
+import util.SecurityUtils;
+
+/**
+ * Cost of one message through each channel decorator, sent and received
+ * again, of HMAC generation and verification as used for private messages,
+ * and of the RSA part of a complete handshake.
+ */
+public class ChannelBenchmark {
+
+	private static final String MESSAGE = "!public alice.vienna.at: see you at the lab tomorrow";
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 10;
+	private static final int OPS = 20000;
+	private static final int RSA_OPS = 100;
+
+	public static void main(String[] args) throws Exception {
+		SecurityUtils.registerBouncyCastle();
+		Cryptography.init();
+
+		final LoopbackChannel plain = new LoopbackChannel();
+		final Channel base64 = new Base64Channel(plain) {
+		};
+		Bench.run("base64 channel, send + receive", WARMUP, ROUNDS, OPS, () -> {
+			base64.send(MESSAGE);
+			return base64.recvByte();
+		});
+
+		byte[] key = Cryptography.genAESSecretKey(256).getEncoded();
+		byte[] iv = Cryptography.genSecureRandomNumber(16);
+		final LoopbackChannel session = new LoopbackChannel();
+		final Channel aesClient = new AESChannel(session, iv, key, true);
+		final Channel aesServer = new AESChannel(session, iv, key, false);
+		Bench.run("aes channel, send + receive", WARMUP, ROUNDS, OPS, () -> {
+			aesClient.send(MESSAGE);
+			return aesServer.recvByte();
+		});
+
+		PrivateKey serverPrivate = Keys.readPrivatePEM(new File("keys/chatserver/chatserver.pem"));
+		PublicKey serverPublic = Keys.readPublicPEM(new File("keys/client/chatserver.pub.pem"));
+		PrivateKey clientPrivate = Keys.readPrivatePEM(new File("keys/client/alice.vienna.at.pem"));
+		PublicKey clientPublic = Keys
+				.readPublicPEM(new File("keys/chatserver/alice.vienna.at.pub.pem"));
+		final LoopbackChannel wire = new LoopbackChannel();
+		final Channel rsaClient = new RSAChannel(wire, clientPrivate);
+		rsaClient.setOppositeKey(serverPublic);
+		final Channel rsaServer = new RSAChannel(wire, serverPrivate);
+		rsaServer.setOppositeKey(clientPublic);
+		Bench.run("rsa channel, send + receive", WARMUP, ROUNDS, RSA_OPS, () -> {
+			rsaClient.send(MESSAGE);
+			return rsaServer.recvByte();
+		});
+
+		// the RSA work of !authenticate: request and !ok reply, plus the session key
+		final String request = "!authenticate alice.vienna.at "
+				+ new String(Base64.encode(Cryptography.genSecureRandomNumber(32)));
+		Bench.run("rsa handshake, both sides", WARMUP, ROUNDS, RSA_OPS, () -> {
+			rsaClient.send(request);
+			String received = new String(rsaServer.recvByte());
+			byte[] sessionKey = Cryptography.genAESSecretKey(256).getEncoded();
+			rsaServer.send("!ok " + received.substring(30) + " " + sessionKey.length);
+			return rsaClient.recvByte();
+		});
+
+		final Key hmacKey = Keys.readSecretKey(new File("keys/hmac.key"));
+		final String privateMessage = "!msg alice.vienna.at: hi bill";
+		Bench.run("hmac generate", WARMUP, ROUNDS, OPS, () -> Cryptography
+				.genMessageWithHMac(hmacKey, HMAC_ALGORITHM.HmacSHA256, privateMessage));
+		final String signed = Cryptography.genMessageWithHMac(hmacKey, HMAC_ALGORITHM.HmacSHA256,
+				privateMessage);
+		Bench.run("hmac verify", WARMUP, ROUNDS, OPS, () -> Cryptography
+				.checkHMacInMessage(hmacKey, HMAC_ALGORITHM.HmacSHA256, signed, true));
+
+		Bench.report("channels");
+	}
+}
@@ -0,0 +1,72 @@
+package bench;
+
+import java.io.File;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import channels.AESChannel;
+import channels.Channel;
+import crypto.Cryptography;
+import util.Keys;
+import util.SecurityUtils;
+
+/**
+ * Compares the per-message cipher set-up the channels used to do with the
+ * cipher contexts they now keep for the lifetime of a session.
+ */
+public class CryptoBenchmark {
+
+	private static final byte[] MESSAGE = "!public alice.vienna.at: see you at the lab tomorrow"
+			.getBytes();
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 10;
+	private static final int OPS = 20000;
+	private static final int RSA_OPS = 200;
+
+	public static void main(String[] args) throws Exception {
+		SecurityUtils.registerBouncyCastle();
+		Cryptography.init();
+
+		final byte[] key = Cryptography.genAESSecretKey(256).getEncoded();
+		final byte[] iv = Cryptography.genSecureRandomNumber(16);
+
+		final LoopbackChannel wire = new LoopbackChannel();
+		Bench.run("aes per-message init (previous channel)", WARMUP, ROUNDS, OPS, () -> {
+			byte[] encrypted = perMessageAES(Cipher.ENCRYPT_MODE, iv, key, MESSAGE);
+			wire.send(new String(Base64.encode(encrypted)));
+			return perMessageAES(Cipher.DECRYPT_MODE, iv, key, Base64.decode(wire.recvByte()));
+		});
+
+		final LoopbackChannel transport = new LoopbackChannel();
+		final Channel client = new AESChannel(transport, iv, key, true);
+		final Channel server = new AESChannel(transport, iv, key, false);
+		final String message = new String(MESSAGE);
+		Bench.run("aes streaming context (AESChannel)", WARMUP, ROUNDS, OPS, () -> {
+			client.send(message);
+			return server.recvByte();
+		});
+
+		final Key publicKey = Keys.readPublicPEM(new File("keys/client/chatserver.pub.pem"));
+		Bench.run("rsa encrypt, cipher per message", WARMUP, ROUNDS, RSA_OPS,
+				() -> Cryptography.cryptoRSA(Cipher.ENCRYPT_MODE, publicKey, MESSAGE));
+		final Cipher rsa = Cryptography.initRSA(Cipher.ENCRYPT_MODE, publicKey);
+		Bench.run("rsa encrypt, cached cipher", WARMUP, ROUNDS, RSA_OPS,
+				() -> Cryptography.cryptoRSA(rsa, MESSAGE));
+		Bench.report("crypto");
+	}
+
+	/**
+	 * What the channel did for every message before cipher contexts were kept.
+	 */
+	private static byte[] perMessageAES(int mode, byte[] iv, byte[] key, byte[] data)
+			throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+		cipher.init(mode, new SecretKeySpec(key, 0, key.length, "AES"), new IvParameterSpec(iv));
+		return cipher.doFinal(data);
+	}
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.Arrays;
+
+import channels.AESChannel;
+import channels.Channel;
+import crypto.Cryptography;
+import util.SecurityUtils;
+
+/**
+ * Compares the line based text framing with binary framing for AES session
+ * traffic: bytes written per message and messages per second through the
+ * channel stack, for a short and a long public message.
+ */
+public class FramingBenchmark {
+
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 10;
+	private static final int OPS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		SecurityUtils.registerBouncyCastle();
+		Cryptography.init();
+
+		byte[] key = Cryptography.genAESSecretKey(256).getEncoded();
+		byte[] iv = Cryptography.genSecureRandomNumber(16);
+
+		String shortMessage = "!public alice.vienna.at: see you at the lab tomorrow";
+		char[] filler = new char[1024];
+		Arrays.fill(filler, 'x');
+		String longMessage = "!public alice.vienna.at: " + new String(filler);
+
+		for (String message : new String[] { shortMessage, longMessage }) {
+			for (boolean binary : new boolean[] { false, true }) {
+				final LoopbackChannel transport = new LoopbackChannel(binary);
+				final Channel client = new AESChannel(transport, iv, key, true);
+				final Channel server = new AESChannel(transport, iv, key, false);
+				String name = (binary ? "binary" : "text") + " framing, " + message.length()
+						+ " char message";
+				Bench.Result result = Bench.run(name, WARMUP, ROUNDS, OPS, () -> {
+					client.send(message);
+					return server.recvByte();
+				});
+				long messages = (long) (WARMUP + ROUNDS) * OPS;
+				System.out.println(String.format("%-45s %12.1f B/msg on wire %10.0f msg/s", name,
+						(double) transport.getBytesWritten() / messages,
+						1e9 / result.getNanosPerOp()));
+			}
+		}
+		Bench.report("framing");
+	}
+}
@@ -0,0 +1,125 @@
+package bench;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import channels.AbstractChannel;
+import channels.Channel;
+import channels.Frame;
+
+/**
+ * In-memory transport for benchmarks: everything sent is encoded as it would
+ * be on the wire, queued and decoded again by the next receive, so channel
+ * decorators can be measured without sockets.
+ */
+public class LoopbackChannel extends AbstractChannel {
+
+	private Queue<ByteBuffer> wire = new ArrayDeque<>();
+	private boolean binary;
+	private boolean discard;
+	private long bytesWritten;
+
+	public LoopbackChannel() {
+		this(false);
+	}
+
+	/**
+	 * @param binary
+	 *            whether to use binary instead of line framing
+	 */
+	public LoopbackChannel(boolean binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * @return a channel that only counts what is written to it, for
+	 *         connections that are never read from
+	 */
+	public static LoopbackChannel sink() {
+		LoopbackChannel sink = new LoopbackChannel(false);
+		sink.discard = true;
+		return sink;
+	}
+
+	/**
+	 * @return the number of bytes that would have been written to a socket
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public Socket getSocket() {
+		return null;
+	}
+
+	@Override
+	public Channel getDecoratedChannel() {
+		return null;
+	}
+
+	@Override
+	public void write(ByteBuffer message) {
+		sendFrame(new Frame(Frame.TEXT, message));
+	}
+
+	@Override
+	public void sendFrame(Frame frame) {
+		ByteBuffer[] buffers = binary ? frame.toBinary() : frame.toLine();
+		int length = 0;
+		for (ByteBuffer buffer : buffers) {
+			length += buffer.remaining();
+		}
+		ByteBuffer encoded = ByteBuffer.allocate(length);
+		for (ByteBuffer buffer : buffers) {
+			encoded.put(buffer);
+		}
+		encoded.flip();
+		bytesWritten += length;
+		if (!discard) {
+			wire.add(encoded);
+		}
+	}
+
+	@Override
+	public ByteBuffer read() throws SocketException, IOException {
+		return binary ? recvFrame().getPayload() : line(wire.poll());
+	}
+
+	@Override
+	public Frame recvFrame() throws SocketException, IOException {
+		ByteBuffer encoded = wire.poll();
+		if (!binary) {
+			return Frame.fromLine(line(encoded));
+		}
+		int length = Frame.checkLength(encoded.getInt());
+		byte opcode = encoded.get();
+		encoded.limit(Frame.HEADER_LENGTH + length);
+		return new Frame(opcode, encoded.slice());
+	}
+
+	/**
+	 * @return the line without its terminator
+	 */
+	private static ByteBuffer line(ByteBuffer encoded) {
+		encoded.limit(encoded.limit() - 1);
+		return encoded;
+	}
+
+	@Override
+	public void close() throws SocketException {
+	}
+
+	@Override
+	public void setOwnKey(Key ownKey) {
+	}
+
+	@Override
+	public void setOppositeKey(Key oppositeKey) {
+	}
+}
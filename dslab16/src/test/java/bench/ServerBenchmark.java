@@ -0,0 +1,173 @@
+package bench;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import chatserver.broadcast.Broadcaster;
+import chatserver.broadcast.PresenceFeed;
+import chatserver.naming.NameserverClient;
+import chatserver.naming.ResolutionCache;
+import chatserver.tcp.HandshakePool;
+import chatserver.tcp.SessionDirectory;
+import chatserver.tcp.SessionTickets;
+import chatserver.tcp.TCPConnection;
+import chatserver.udp.ListCache;
+import model.User;
+import model.UserRegistry;
+import util.Config;
+import util.PublicKeyStore;
+import util.SecurityUtils;
+
+/**
+ * Server side request handling: building the {@code !list} response for
+ * growing numbers of online users, fanning a public message out to many
+ * sessions and dispatching a request on a connection. Connections write to
+ * {@link LoopbackChannel#sink()}s and queued messages are written on the
+ * calling thread, so the numbers include the complete delivery.
+ */
+public class ServerBenchmark {
+
+	private static final int WARMUP = 3;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		SecurityUtils.registerBouncyCastle();
+		Config config = new Config("chatserver");
+
+		for (int online : new int[] { 1000, 10000, 100000 }) {
+			UserRegistry users = register(online);
+			ListCache cache = new ListCache(users);
+			User toggled = users.get(name(0));
+			int ops = Math.max(10, 1000000 / online);
+			Bench.run("!list rebuild, " + online + " online", WARMUP, ROUNDS, ops, () -> {
+				users.logout(toggled);
+				users.login(toggled);
+				return cache.get();
+			});
+			Bench.run("!list cached, " + online + " online", WARMUP, ROUNDS, 100000, cache::get);
+		}
+
+		for (int recipients : new int[] { 10, 100, 1000 }) {
+			UserRegistry users = register(recipients);
+			Server server = new Server(config, users);
+			TCPConnection sender = null;
+			for (int i = 0; i < recipients; i++) {
+				TCPConnection connection = server.connect();
+				users.logout(users.get(name(i)));
+				connection.login("!login " + name(i) + " secret");
+				sender = connection;
+			}
+			final TCPConnection from = sender;
+			int ops = Math.max(10, 100000 / recipients);
+			Bench.run("broadcast fan-out, " + recipients + " sessions", WARMUP, ROUNDS, ops,
+					() -> {
+						TCPConnection.COMMANDS.dispatch(from, "!send hello everyone");
+						return from;
+					});
+		}
+
+		UserRegistry users = register(1);
+		Server server = new Server(config, users);
+		final TCPConnection connection = server.connect();
+		Bench.run("dispatch unknown request", WARMUP, ROUNDS, 100000, () -> {
+			TCPConnection.COMMANDS.dispatch(connection, "!unknown request");
+			return connection;
+		});
+		Bench.run("dispatch !logout, not logged in", WARMUP, ROUNDS, 100000, () -> {
+			TCPConnection.COMMANDS.dispatch(connection, "!logout");
+			return connection;
+		});
+
+		Bench.report("server");
+		System.exit(0);
+	}
+
+	/**
+	 * @return a registry with the given number of users, all of them online
+	 */
+	private static UserRegistry register(int count) {
+		UserRegistry users = new UserRegistry();
+		for (int i = 0; i < count; i++) {
+			User user = new User(name(i), "secret");
+			users.add(user);
+			users.login(user);
+		}
+		return users;
+	}
+
+	private static String name(int i) {
+		return String.format("user%06d.bench", i);
+	}
+
+	/**
+	 * The shared services a connection needs, with a broadcaster that writes
+	 * on the calling thread.
+	 */
+	private static class Server {
+		private UserRegistry users;
+		private SessionDirectory sessions;
+		private Broadcaster broadcaster;
+		private PresenceFeed presence;
+		private PublicKeyStore publicKeys;
+		private HandshakePool handshakes;
+		private NameserverClient nameservers;
+		private PrintStream console;
+
+		private Server(Config config, UserRegistry users) {
+			this.users = users;
+			this.sessions = new SessionDirectory(new SessionTickets(config));
+			this.broadcaster = new Broadcaster(config, new DirectExecutor());
+			this.presence = new PresenceFeed(config, users);
+			this.publicKeys = new PublicKeyStore(new File(config.getString("keys.dir")));
+			this.handshakes = new HandshakePool(config);
+			this.nameservers = new NameserverClient(config, new ResolutionCache(config));
+			this.console = new PrintStream(OutputStream.nullOutputStream());
+		}
+
+		private TCPConnection connect() {
+			return new TCPConnection(LoopbackChannel.sink(), ConcurrentHashMap.newKeySet(),
+					users, sessions, broadcaster, presence, publicKeys, handshakes, nameservers,
+					console);
+		}
+	}
+
+	/**
+	 * Runs every task right away on the submitting thread.
+	 */
+	private static class DirectExecutor extends AbstractExecutorService {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+
+		@Override
+		public void shutdown() {
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return false;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return false;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return true;
+		}
+	}
+}
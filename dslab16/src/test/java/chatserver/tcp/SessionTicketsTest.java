@@ -0,0 +1,82 @@
+package chatserver.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.security.SecureRandom;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import chatserver.tcp.SessionTickets.Ticket;
+import crypto.Resumption;
+import util.Config;
+
+/**
+ * Redeems tickets the way a resuming client presents them.
+ */
+public class SessionTicketsTest {
+
+	private Config config;
+	private SecureRandom random;
+
+	@Before
+	public void setUp() {
+		config = new Config("chatserver");
+		random = new SecureRandom();
+	}
+
+	private byte[] nonce() {
+		byte[] nonce = new byte[Resumption.NONCE_LENGTH];
+		random.nextBytes(nonce);
+		return nonce;
+	}
+
+	private Ticket redeem(SessionTickets tickets, Ticket ticket) {
+		byte[] nonce = nonce();
+		return tickets.redeem(ticket.getEncoded(), nonce,
+				Resumption.proof(ticket.getSecret(), nonce));
+	}
+
+	@Test
+	public void redeemsTicketOfUser() {
+		SessionTickets tickets = new SessionTickets(config);
+		Ticket redeemed = redeem(tickets, tickets.issue("bill.de"));
+		assertNotNull(redeemed);
+		assertEquals("bill.de", redeemed.getUsername());
+	}
+
+	@Test
+	public void rejectsReplayedTicket() {
+		SessionTickets tickets = new SessionTickets(config);
+		Ticket ticket = tickets.issue("bill.de");
+		assertNotNull(redeem(tickets, ticket));
+		assertNull(redeem(tickets, ticket));
+		assertEquals("Session tickets: 1 issued, 1 resumed, 1 rejected", tickets.stats());
+	}
+
+	@Test
+	public void wrongProofDoesNotUseUpTicket() {
+		SessionTickets tickets = new SessionTickets(config);
+		Ticket ticket = tickets.issue("bill.de");
+		byte[] nonce = nonce();
+		assertNull(tickets.redeem(ticket.getEncoded(), nonce, Resumption.proof(nonce(), nonce)));
+		assertNotNull(redeem(tickets, ticket));
+	}
+
+	@Test
+	public void rejectsExpiredTicket() throws InterruptedException {
+		config.setProperty("ticket.lifetime", 1);
+		SessionTickets tickets = new SessionTickets(config);
+		Ticket ticket = tickets.issue("bill.de");
+		Thread.sleep(1100);
+		assertNull(redeem(tickets, ticket));
+	}
+
+	@Test
+	public void rejectsTicketOfOtherServer() {
+		Ticket ticket = new SessionTickets(config).issue("bill.de");
+		assertNull(redeem(new SessionTickets(config), ticket));
+	}
+}
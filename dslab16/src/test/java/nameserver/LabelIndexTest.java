@@ -0,0 +1,69 @@
+package nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class LabelIndexTest {
+
+	@Test
+	public void getsLabelFromRegionOfName() {
+		LabelIndex<String> index = new LabelIndex<>();
+		index.put("alice", "127.0.0.1:14999");
+		index.put("vienna", "ns-vienna-at");
+		String name = "alice.vienna.at";
+		assertEquals("127.0.0.1:14999", index.get(name, 0, 5));
+		assertEquals("ns-vienna-at", index.get(name, 6, 12));
+		assertNull(index.get(name, 13, 15));
+		// regions that are only a prefix or extend a label do not match
+		assertNull(index.get(name, 6, 11));
+		assertNull(index.get(name, 0, 6));
+	}
+
+	@Test
+	public void putIfAbsentKeepsCurrentValue() {
+		LabelIndex<String> index = new LabelIndex<>();
+		assertNull(index.putIfAbsent("bill", "127.0.0.1:1"));
+		assertEquals("127.0.0.1:1", index.putIfAbsent("bill", "127.0.0.1:2"));
+		assertEquals("127.0.0.1:1", index.get("bill"));
+		assertEquals("127.0.0.1:1", index.put("bill", "127.0.0.1:2"));
+		assertEquals("127.0.0.1:2", index.get("bill"));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void readsDuringResizeFindEveryLabel() throws InterruptedException {
+		LabelIndex<Integer> index = new LabelIndex<>();
+		int labels = 100000;
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<String> missing = new AtomicReference<>();
+		Thread reader = new Thread(() -> {
+			// labels below the published count must always be found, even
+			// while the table is being replaced
+			while (!done.get() && missing.get() == null) {
+				int known = index.size();
+				for (int i = 0; i < known; i += 97) {
+					if (index.get("user" + i) == null) {
+						missing.set("user" + i);
+					}
+				}
+			}
+		});
+		reader.start();
+		for (int i = 0; i < labels; i++) {
+			index.put("user" + i, i);
+		}
+		done.set(true);
+		reader.join();
+		assertNull(missing.get());
+		assertEquals(labels, index.size());
+		for (int i = 0; i < labels; i++) {
+			assertEquals(Integer.valueOf(i), index.get("user" + i));
+		}
+		assertEquals(labels, index.snapshot().size());
+	}
+}
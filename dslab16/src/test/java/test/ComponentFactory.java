@@ -37,7 +37,9 @@ public class ComponentFactory {
 
 	/**
 	 * Creates and starts a new chatserver instance using the provided
-	 * {@link Config} and I/O streams.
+	 * {@link Config} and I/O streams. A chatserver with a name other than
+	 * {@code chatserver} reads its settings from {@code chatserver.properties}
+	 * overridden by those in the properties file of its name.
 	 *
 	 * @param componentName
 	 *            the name of the component to create
@@ -53,6 +55,13 @@ public class ComponentFactory {
 		 * following lines but you do not have to.
 		 */
 		Config config = new Config("chatserver");
+		if (!componentName.equals("chatserver")) {
+			// a test chatserver overrides some settings in <componentName>.properties
+			Config overrides = new Config(componentName);
+			for (String key : overrides.listKeys()) {
+				config.setProperty(key, overrides.getString(key));
+			}
+		}
 		return new Chatserver(componentName, config, in, out);
 	}
 